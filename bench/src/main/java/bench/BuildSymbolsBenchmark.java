@@ -0,0 +1,29 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import apps.Expression;
+
+/**
+ * Cost of Expression.buildSymbols, which scans the expression for symbols and parses it.
+ */
+@State(Scope.Benchmark)
+public class BuildSymbolsBenchmark extends WorkloadState {
+
+	private String text;
+
+	@Setup
+	public void setup() {
+		text = generate().expression;
+	}
+
+	@Benchmark
+	public Expression buildSymbols() {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		return expr;
+	}
+}
@@ -0,0 +1,43 @@
+package bench;
+
+import java.io.IOException;
+import java.util.Scanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import apps.Expression;
+
+/**
+ * Cost of Expression.evaluate on an expression whose symbols are built and loaded,
+ * for each evaluation engine.
+ */
+@State(Scope.Benchmark)
+public class EvaluateBenchmark extends WorkloadState {
+
+	/**
+	 * Name of an Expression.Mode
+	 */
+	@Param({"INTERPRETED", "COMPILED", "STACK"})
+	public String engine;
+
+	private Expression expr;
+
+	@Setup
+	public void setup() throws IOException {
+		Workload workload = generate();
+		expr = new Expression(workload.expression);
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(workload.values));
+		expr.setMode(Expression.Mode.valueOf(engine));
+		expr.evaluate();
+	}
+
+	@Benchmark
+	public float evaluate() {
+		return expr.evaluate();
+	}
+}
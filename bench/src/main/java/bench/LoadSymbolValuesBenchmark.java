@@ -0,0 +1,59 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Scanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import apps.Expression;
+
+/**
+ * Cost of loading the values file of the workload into a built expression, through
+ * the Scanner loader or the NIO loader. The file is in a temporary directory, so it
+ * is normally served from the page cache.
+ */
+@State(Scope.Benchmark)
+public class LoadSymbolValuesBenchmark extends WorkloadState {
+
+	/**
+	 * scanner for loadSymbolValues(Scanner), nio for loadSymbolValues(Path)
+	 */
+	@Param({"scanner", "nio"})
+	public String loader;
+
+	private Expression expr;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		Workload workload = generate();
+		expr = new Expression(workload.expression);
+		expr.buildSymbols();
+		file = Files.createTempFile("symbols", ".txt");
+		Files.writeString(file, workload.values);
+	}
+
+	@TearDown
+	public void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public Expression loadSymbolValues() throws IOException {
+		if (loader.equals("nio")) {
+			expr.loadSymbolValues(file);
+		} else {
+			try (Scanner sc = new Scanner(file)) {
+				expr.loadSymbolValues(sc);
+			}
+		}
+		return expr;
+	}
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import apps.Bindings;
+import apps.CompiledExpression;
+
+/**
+ * Cost of the typed evaluations of CompiledExpression against a loaded binding
+ * context, so that checked arithmetic can be compared with the wrapping kind and long
+ * and double with int.
+ */
+@State(Scope.Benchmark)
+public class TypedEvaluateBenchmark extends WorkloadState {
+
+	/**
+	 * int, long or double
+	 */
+	@Param({"int", "long", "double"})
+	public String type;
+
+	/**
+	 * Whether int and long arithmetic throw on overflow; ignored for double
+	 */
+	@Param({"false", "true"})
+	public boolean exact;
+
+	private CompiledExpression expr;
+	private Bindings bindings;
+
+	@Setup
+	public void setup() throws IOException {
+		Workload workload = generate();
+		expr = CompiledExpression.parse(workload.expression);
+		bindings = expr.newBindings();
+		Path file = Files.createTempFile("symbols", ".txt");
+		try {
+			Files.writeString(file, workload.values);
+			bindings.loadSymbolValues(file);
+		} finally {
+			Files.delete(file);
+		}
+		evaluate();
+	}
+
+	@Benchmark
+	public double evaluate() {
+		switch (type) {
+		case "long":
+			return exact ? expr.evaluateLongExact(bindings) : expr.evaluateLong(bindings);
+		case "double":
+			return expr.evaluateDouble(bindings);
+		default:
+			return exact ? expr.evaluateIntExact(bindings) : expr.evaluateInt(bindings);
+		}
+	}
+}
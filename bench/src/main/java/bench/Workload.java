@@ -0,0 +1,130 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Generates an expression and a matching symbol values file, scaled by the number of
+ * terms in the expression, how deeply terms are nested in ( and [, how many distinct
+ * symbols are used, and how long the arrays are.
+ *
+ * Scalars are named s0, s1, ... and arrays a0, a1, ...; the symbols are split evenly
+ * between the two. Every scalar and array entry is in [1, arraySize), so any scalar or
+ * array entry is a valid subscript and no division is by zero. The same parameters
+ * and seed always produce the same workload, so engines can be compared on identical
+ * inputs.
+ */
+public class Workload {
+
+	/**
+	 * Expression text
+	 */
+	public final String expression;
+
+	/**
+	 * Contents of the symbol values file for the expression
+	 */
+	public final String values;
+
+	private final Random random;
+	private final int scalars;
+	private final int arrays;
+	private final int arraySize;
+
+	/**
+	 * Generates a workload.
+	 *
+	 * @param terms Number of terms joined by operators at the top level
+	 * @param depth Nesting depth of every tenth term: half of the levels are
+	 * parenthesized groups, half are array subscripts
+	 * @param symbols Number of distinct symbols, at least 2
+	 * @param arraySize Length of every array, at least 2
+	 * @param seed Random seed
+	 */
+	public Workload(int terms, int depth, int symbols, int arraySize, long seed) {
+		this.random = new Random(seed);
+		this.arrays = Math.max(1, symbols / 2);
+		this.scalars = Math.max(1, symbols - arrays);
+		this.arraySize = arraySize;
+
+		StringBuilder sb = new StringBuilder();
+		for (int t = 0; t < terms; t++) {
+			boolean nest = t % 10 == 0;
+			if (t > 0) {
+				// a nested group can be zero, so it is never a divisor
+				sb.append(' ').append(nest ? '+' : operator()).append(' ');
+			}
+			if (nest) {
+				nested(sb, depth);
+			} else {
+				leaf(sb);
+			}
+		}
+		// make sure every symbol occurs, so the values file has no unused lines
+		for (int i = 0; i < scalars; i++) {
+			sb.append(" + s").append(i);
+		}
+		for (int i = 0; i < arrays; i++) {
+			sb.append(" + a").append(i).append("[1]");
+		}
+		expression = sb.toString();
+
+		StringBuilder vb = new StringBuilder();
+		for (int i = 0; i < scalars; i++) {
+			vb.append('s').append(i).append(' ').append(value()).append('\n');
+		}
+		for (int i = 0; i < arrays; i++) {
+			vb.append('a').append(i).append(' ').append(arraySize);
+			for (int j = 0; j < arraySize; j++) {
+				vb.append(" (").append(j).append(',').append(value()).append(')');
+			}
+			vb.append('\n');
+		}
+		values = vb.toString();
+	}
+
+	/**
+	 * Appends a term nested depth levels deep: parenthesized groups outside, array
+	 * subscripts inside, so every subscript is a valid index.
+	 */
+	private void nested(StringBuilder sb, int depth) {
+		int parens = (depth + 1) / 2;
+		int subscripts = depth / 2;
+		for (int i = 0; i < parens; i++) {
+			sb.append('(');
+		}
+		for (int i = 0; i < subscripts; i++) {
+			sb.append('a').append(random.nextInt(arrays)).append('[');
+		}
+		sb.append('s').append(random.nextInt(scalars));
+		for (int i = 0; i < subscripts; i++) {
+			sb.append(']');
+		}
+		for (int i = 0; i < parens; i++) {
+			sb.append(' ').append(operator()).append(' ');
+			leaf(sb);
+			sb.append(')');
+		}
+	}
+
+	private void leaf(StringBuilder sb) {
+		switch (random.nextInt(3)) {
+		case 0:
+			sb.append(value());
+			break;
+		case 1:
+			sb.append('s').append(random.nextInt(scalars));
+			break;
+		default:
+			sb.append('a').append(random.nextInt(arrays)).append("[s").append(random.nextInt(scalars)).append(']');
+			break;
+		}
+	}
+
+	private char operator() {
+		return "+-*+-*/".charAt(random.nextInt(7));
+	}
+
+	private int value() {
+		return 1 + random.nextInt(arraySize - 1);
+	}
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Workload parameters shared by all benchmarks, which extend this class. Each
+ * combination generates one expression and values file, with a fixed seed.
+ */
+@State(Scope.Benchmark)
+public abstract class WorkloadState {
+
+	/**
+	 * Terms at the top level of the expression
+	 */
+	@Param({"10", "100", "1000"})
+	public int terms;
+
+	/**
+	 * Nesting depth of ( and [ in every tenth term
+	 */
+	@Param({"0", "8", "64"})
+	public int depth;
+
+	/**
+	 * Distinct symbols, half scalars and half arrays
+	 */
+	@Param({"4", "64"})
+	public int symbols;
+
+	/**
+	 * Length of each array
+	 */
+	@Param({"16", "4096"})
+	public int arraySize;
+
+	/**
+	 * Generates the workload for the current parameters.
+	 *
+	 * @return Workload
+	 */
+	protected Workload generate() {
+		return new Workload(terms, depth, symbols, arraySize, 42);
+	}
+}
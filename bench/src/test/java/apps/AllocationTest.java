@@ -0,0 +1,139 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import structures.DenseIntArray;
+import structures.IntArray;
+
+/**
+ * Checks that evaluating again against the same values allocates nothing, with the
+ * per-thread allocation counter of the JVM.
+ */
+class AllocationTest {
+
+	private static final String TEXT = "a - (b+A[B[2]])*d + 3";
+	private static final int ROUNDS = 10;
+	private static final int RUNS = 20000;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	@TempDir
+	static Path dir;
+
+	private static Path values;
+
+	@BeforeAll
+	static void write() throws IOException {
+		values = Files.writeString(dir.resolve("values.txt"), "a 3\nb 2\nA 5 (2,3) (4,5)\nB 3 (2,1)\nd 56\n");
+	}
+
+	/**
+	 * Runs an evaluation RUNS times in each of several rounds. The first rounds can
+	 * see a few bytes allocated by the JVM itself while the code is being compiled, so
+	 * the fewest bytes of any round are taken: an evaluation that allocated anything
+	 * would allocate in every round.
+	 *
+	 * @return Fewest bytes allocated by a round, less what reading the counter costs
+	 */
+	private static long allocated(LongSupplier evaluation) {
+		long sink = 0;
+		long fewest = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS && fewest > 0; round++) {
+			long empty = THREADS.getCurrentThreadAllocatedBytes();
+			long start = THREADS.getCurrentThreadAllocatedBytes();
+			for (int i = 0; i < RUNS; i++) {
+				sink += evaluation.getAsLong();
+			}
+			long end = THREADS.getCurrentThreadAllocatedBytes();
+			fewest = Math.min(fewest, Math.max(0, end - start - (start - empty)));
+		}
+		if (sink == 42) { // keep the results alive
+			System.out.print("");
+		}
+		return fewest;
+	}
+
+	private static Expression loaded(String text, Expression.Mode mode) throws IOException {
+		Expression e = new Expression(text);
+		e.buildSymbols();
+		e.loadSymbolValues(values);
+		e.setMode(mode);
+		return e;
+	}
+
+	@Test
+	void expressionInEveryMode() throws IOException {
+		for (Expression.Mode mode : Expression.Mode.values()) {
+			Expression e = loaded(TEXT, mode);
+			assertEquals(0, allocated(() -> e.evaluateInt()), mode + " int");
+			assertEquals(0, allocated(() -> e.evaluateLong()), mode + " long");
+			assertEquals(0, allocated(() -> (long)e.evaluateDouble()), mode + " double");
+			e.setOverflowChecked(true);
+			assertEquals(0, allocated(() -> e.evaluateInt()), mode + " checked int");
+			assertEquals(0, allocated(() -> e.evaluateLong()), mode + " checked long");
+		}
+	}
+
+	@Test
+	void compiledExpressionWithOneBindings() throws IOException {
+		CompiledExpression ce = CompiledExpression.parse(TEXT);
+		Bindings bindings = ce.newBindings();
+		bindings.loadSymbolValues(values);
+		assertEquals(0, allocated(() -> ce.evaluate(bindings)), "int");
+		assertEquals(0, allocated(() -> ce.evaluateIntExact(bindings)), "checked int");
+		assertEquals(0, allocated(() -> ce.evaluateLong(bindings)), "long");
+		assertEquals(0, allocated(() -> ce.evaluateLongExact(bindings)), "checked long");
+		assertEquals(0, allocated(() -> (long)ce.evaluateDouble(bindings)), "double");
+	}
+
+	@Test
+	void deepExpression() throws IOException {
+		int depth = 5000; // past Node.RECURSION_LIMIT, so run on the stack machine
+		String text = "a+(".repeat(depth) + "b" + ")".repeat(depth);
+		Expression e = loaded(text, Expression.Mode.COMPILED);
+		assertEquals(0, allocated(() -> e.evaluateInt()), "int");
+		assertEquals(0, allocated(() -> e.evaluateLong()), "long");
+		assertEquals(0, allocated(() -> (long)e.evaluateDouble()), "double");
+	}
+
+	@Test
+	void expressionSet() throws IOException {
+		ExpressionSet set = new ExpressionSet(Arrays.asList(TEXT, "a*d + A[B[2]]", "(a*d + A[B[2]]) * b"));
+		set.loadSymbolValues(values);
+		int[] results = new int[set.size()];
+		assertEquals(0, allocated(() -> {
+			set.evaluate(results);
+			return results[0];
+		}));
+	}
+
+	@Test
+	void batch() throws IOException {
+		Expression e = loaded(TEXT, Expression.Mode.INTERPRETED);
+		int rows = 1000;
+		int[][] columns = new int[e.scalars.size()][rows];
+		for (int[] column : columns) {
+			Arrays.fill(column, 2);
+		}
+		IntArray[] arrays = new IntArray[e.arrays.size()];
+		for (int i = 0; i < arrays.length; i++) {
+			arrays[i] = new DenseIntArray(new int[] {1, 2, 0, 4, 3});
+		}
+		int[] results = new int[rows];
+		assertEquals(0, allocated(() -> {
+			e.evaluateBatch(columns, arrays, results);
+			return results[0];
+		}));
+	}
+}
@@ -0,0 +1,70 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchRunnerTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void runsJobsInOrderAndReportsErrors() throws IOException {
+		Path values = Files.writeString(dir.resolve("values.txt"), "a 3\nb 2\nA 5 (2,3) (4,5)\n");
+		String jobs = "a*b+A[4]\t" + values + "\n"
+				+ "\n"
+				+ "# comment\n"
+				+ "2*(3+4)\n"
+				+ "a b\t" + values + "\n"
+				+ "a+b\t" + dir.resolve("missing.txt") + "\n"
+				+ "a/(b-2)\t" + values + "\n";
+		StringWriter out = new StringWriter();
+		BatchRunner runner = new BatchRunner(new StringReader(jobs), out, false);
+		assertTimeoutPreemptively(Duration.ofSeconds(30), () -> runner.run());
+		String[] lines = out.toString().split("\n");
+		assertEquals(5, lines.length);
+		assertEquals("1\tOK\t11", lines[0]);
+		assertEquals("4\tOK\t14", lines[1]);
+		assertTrue(lines[2].startsWith("5\tERROR\tmissing operator"), lines[2]);
+		assertEquals("6\tERROR\tno such file: " + dir.resolve("missing.txt"), lines[3]);
+		assertTrue(lines[4].startsWith("7\tERROR\tArithmeticException"), lines[4]);
+		assertEquals(5, runner.jobs());
+		assertEquals(3, runner.failed());
+	}
+
+	@Test
+	void readerFailureEndsTheRun() {
+		Reader failing = new Reader() {
+			private final Reader first = new StringReader("1+2\n");
+
+			public int read(char[] buf, int off, int len) throws IOException {
+				int n = first.read(buf, off, len);
+				if (n < 0) {
+					throw new IllegalStateException("broken reader");
+				}
+				return n;
+			}
+
+			public void close() {
+			}
+		};
+		StringWriter out = new StringWriter();
+		BatchRunner runner = new BatchRunner(failing, out, false);
+		IOException e = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> assertThrows(IOException.class, runner::run));
+		assertTrue(e.getCause() instanceof IllegalStateException);
+		assertEquals("1\tOK\t3\n", out.toString());
+	}
+}
@@ -0,0 +1,147 @@
+package apps;
+
+import static apps.RandomExpressions.outcome;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import structures.IntArray;
+
+/**
+ * The bytecode of every kind of evaluation gives the same value, or throws the same
+ * exception, as the interpreter it replaces, on the same tree.
+ */
+class BytecodeCompilerTest {
+
+	/**
+	 * Compiles every kind of evaluation of an expression, which must not fall back to
+	 * the interpreter, and compares each with the interpreter on a few sets of values.
+	 */
+	private static void assertCompiledMatches(String text, RandomExpressions values) {
+		CompiledExpression ce = CompiledExpression.parse(text);
+		Node typed = new CommonSubexpressions(ce.parsed, ce.scalarCount()).tree;
+		ExpressionFunction function = BytecodeCompiler.compile(ce.tree);
+		ExpressionFunction exact = BytecodeCompiler.compileExact(typed);
+		ExpressionFunction.OfLong wide = BytecodeCompiler.compileLong(typed, false);
+		ExpressionFunction.OfLong wideExact = BytecodeCompiler.compileLong(typed, true);
+		ExpressionFunction.OfDouble real = BytecodeCompiler.compileDouble(ce.parsed);
+		for (int i = 0; i < 4; i++) {
+			Bindings bindings = ce.newBindings();
+			values.bind(ce, bindings);
+			int[] s = bindings.scalars;
+			IntArray[] a = bindings.arrays;
+			assertEquals(outcome(() -> ce.tree.eval(s, a)), outcome(() -> function.eval(s, a)), text);
+			assertEquals(outcome(() -> ce.parsed.evalExact(s, a)), outcome(() -> exact.eval(s, a)), "exact " + text);
+			assertEquals(outcome(() -> ce.parsed.evalLong(s, a)), outcome(() -> wide.eval(s, a)), "long " + text);
+			assertEquals(outcome(() -> ce.parsed.evalLongExact(s, a)), outcome(() -> wideExact.eval(s, a)), "exact long " + text);
+			assertEquals(outcome(() -> ce.parsed.evalDouble(s, a)), outcome(() -> real.eval(s, a)), "double " + text);
+		}
+	}
+
+	@Test
+	void generatedExpressions() {
+		RandomExpressions random = new RandomExpressions(2);
+		for (int i = 0; i < 500; i++) {
+			assertCompiledMatches(random.next(6), random);
+		}
+	}
+
+	@Test
+	void divisionByZeroInSubscripts() {
+		RandomExpressions values = new RandomExpressions(3);
+		assertCompiledMatches("A[a/(b-b)]", values);
+		assertCompiledMatches("B[1/(a*0)] + A[a/(b-b)]*A[a/(b-b)]", values);
+		assertCompiledMatches("A[B[c/0]] - 1", values);
+		assertCompiledMatches("A[2147483647*a/(c-c)+1] + B[-(a)/0]", values);
+	}
+
+	@Test
+	void constantsOfEveryWidth() {
+		// iconst, bipush, sipush and ldc_w, with a pooled int used twice
+		assertCompiledMatches("a*5 + b*127 + c*32767 + d*32768 + a*2147483647 + b*32768 - -(128)", new RandomExpressions(4));
+	}
+
+	/**
+	 * More shared values than a one-byte local index reaches, so the later ones are
+	 * stored and loaded with WIDE; longs and doubles take two locals each.
+	 */
+	@Test
+	void moreThan255Locals() {
+		StringBuilder text = new StringBuilder("0");
+		for (int i = 0; i < 300; i++) {
+			text.append(" + (a+").append(i).append(")*(a+").append(i).append(")");
+		}
+		CompiledExpression ce = CompiledExpression.parse(text.toString());
+		assertTrue(ce.temps > 255, ce.temps + " shared values");
+		Bindings bindings = ce.newBindings();
+		bindings.setScalar("a", 3);
+		int expected = 0;
+		for (int i = 0; i < 300; i++) {
+			expected += (3 + i) * (3 + i);
+		}
+		assertEquals(expected, BytecodeCompiler.compile(ce.tree).eval(bindings.scalars, bindings.arrays));
+		assertCompiledMatches(text.toString(), new RandomExpressions(5));
+	}
+
+	/**
+	 * Right-nested operators keep every left operand on the operand stack, which
+	 * maxStack must count for the class to verify.
+	 */
+	@Test
+	void deepOperandStack() {
+		int depth = Node.RECURSION_LIMIT - 10;
+		RandomExpressions values = new RandomExpressions(6);
+		assertCompiledMatches("a-(".repeat(depth) + "b" + ")".repeat(depth), values);
+		assertCompiledMatches("A[c+".repeat(depth / 2) + "0" + "]".repeat(depth / 2), values);
+		assertCompiledMatches("a*(b+(B[c-(d/(".repeat(depth / 5) + "a" + "))]))".repeat(depth / 5), values);
+	}
+
+	/**
+	 * A balanced sum of 16384 distinct terms: too much code for one method, but not
+	 * nested deep enough to need the stack machine.
+	 */
+	@Test
+	void tooLargeFallsBackToTheInterpreter() {
+		int terms = 16384;
+		String text = sum(0, terms);
+		CompiledExpression ce = CompiledExpression.parse(text);
+		assertTrue(!ce.deep);
+		IllegalStateException tooLarge = assertThrows(IllegalStateException.class, () -> BytecodeCompiler.compile(ce.tree));
+		assertTrue(tooLarge.getMessage().startsWith("expression too large to compile"), tooLarge.getMessage());
+
+		Bindings bindings = ce.newBindings();
+		bindings.setScalar("a", 3);
+		long expected = 0;
+		for (int i = 0; i < terms; i++) {
+			expected += 3L * i;
+		}
+		assertEquals((int)expected, ce.evaluate(bindings));
+		assertEquals(expected, ce.evaluateLong(bindings));
+		assertEquals(expected, ce.evaluateLongExact(bindings));
+		assertEquals(expected, ce.evaluateDouble(bindings));
+		bindings.setScalar("a", Integer.MAX_VALUE);
+		assertThrows(ArithmeticException.class, () -> ce.evaluateIntExact(bindings));
+
+		Expression e = new Expression(text);
+		e.setMode(Expression.Mode.COMPILED);
+		e.setScalarValue("a", 3);
+		assertEquals((int)expected, e.evaluateInt());
+	}
+
+	private static String sum(int from, int to) {
+		if (to - from == 1) {
+			return "a*" + from;
+		}
+		int mid = (from + to) >>> 1;
+		return "(" + sum(from, mid) + ")+(" + sum(mid, to) + ")";
+	}
+
+	@Test
+	void tooDeepIsNotCompiled() {
+		int depth = Node.RECURSION_LIMIT + 1;
+		CompiledExpression ce = CompiledExpression.parse("-(".repeat(depth) + "a" + ")".repeat(depth));
+		assertThrows(IllegalStateException.class, () -> BytecodeCompiler.compile(ce.parsed));
+	}
+}
@@ -0,0 +1,142 @@
+package apps;
+
+import static apps.RandomExpressions.outcome;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import structures.IntArray;
+
+/**
+ * A tree with its common subexpressions shared gives the value of the tree it was made
+ * from, or throws what it throws, and keeps the shared values in slots after the
+ * scalars.
+ */
+class CommonSubexpressionsTest {
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * Checks that every Let and Temp of the shared tree uses a slot past the scalars and
+	 * within the frame, and that each Temp reads a slot a Let has written before it.
+	 */
+	private static void assertSlotsAfterScalars(CompiledExpression ce) {
+		boolean[] written = new boolean[ce.frameSize()];
+		for (Node node : Node.postorder(ce.tree)) {
+			if (node instanceof Node.Let) {
+				int slot = ((Node.Let)node).slot;
+				assertTrue(slot >= ce.scalarCount() && slot < ce.frameSize(), "Let slot " + slot + " in " + ce.dump());
+				written[slot] = true;
+			} else if (node instanceof Node.Temp) {
+				int slot = ((Node.Temp)node).slot;
+				assertTrue(slot >= ce.scalarCount() && slot < ce.frameSize(), "Temp slot " + slot + " in " + ce.dump());
+				assertTrue(written[slot], "Temp slot " + slot + " read before it is written in " + ce.dump());
+			}
+		}
+	}
+
+	@Test
+	void generatedExpressions() {
+		RandomExpressions random = new RandomExpressions(12);
+		int shared = 0;
+		for (int i = 0; i < 2000; i++) {
+			String text = random.next(6);
+			CompiledExpression ce = CompiledExpression.parse(text);
+			assertSlotsAfterScalars(ce);
+			shared += ce.temps;
+			for (int v = 0; v < 4; v++) {
+				Bindings bindings = ce.newBindings();
+				random.bind(ce, bindings);
+				int[] s = bindings.scalars;
+				IntArray[] a = bindings.arrays;
+				int[] scalars = Arrays.copyOf(s, ce.scalarCount());
+				assertEquals(outcome(() -> ce.optimized.eval(s, a)), outcome(() -> ce.tree.eval(s, a)), text);
+				assertArrayEquals(scalars, Arrays.copyOf(s, ce.scalarCount()), "scalars overwritten by " + ce.dump());
+			}
+		}
+		assertTrue(shared > 500, shared + " values shared");
+	}
+
+	@Test
+	void repeatedSubscript() {
+		CompiledExpression ce = CompiledExpression.parse("A[b] + A[b]");
+		assertEquals(1, ce.temps);
+		assertEquals(2, ce.deduplicated()); // the second A[b] and its b
+		assertSlotsAfterScalars(ce);
+		Bindings bindings = ce.newBindings();
+		bindings.setArray("A", new int[] {5, 7});
+		bindings.setScalar("b", 1);
+		assertEquals(14, ce.evaluate(bindings));
+		assertEquals(1, bindings.getScalar("b"));
+		bindings.setScalar("b", 2);
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> ce.evaluate(bindings));
+	}
+
+	@Test
+	void sharedDivisionStillThrows() {
+		CompiledExpression ce = CompiledExpression.parse("a/b + A[a/b]*(a/b)");
+		assertEquals(1, ce.temps);
+		Bindings bindings = ce.newBindings();
+		bindings.setArray("A", new int[] {1, 2, 3});
+		bindings.setScalar("a", 4);
+		bindings.setScalar("b", 2);
+		assertEquals(2 + 3 * 2, ce.evaluate(bindings));
+		bindings.setScalar("b", 0);
+		assertThrows(ArithmeticException.class, () -> ce.evaluate(bindings));
+	}
+
+	@Test
+	void nestedRepeats() {
+		// A[b+a] is shared inside the shared A[b+a]*A[b+a]
+		String text = "A[b+a]*A[b+a] + A[b+a] - (A[b+a]*A[b+a])/2";
+		CompiledExpression ce = CompiledExpression.parse(text);
+		assertEquals(2, ce.temps);
+		assertSlotsAfterScalars(ce);
+		Bindings bindings = ce.newBindings();
+		bindings.setArray("A", new int[] {0, 0, 0, 9});
+		bindings.setScalar("a", 1);
+		bindings.setScalar("b", 2);
+		assertEquals(81 + 9 - 81 / 2, ce.evaluate(bindings));
+	}
+
+	/**
+	 * A set of expressions shares values across them, each with the value it has on its
+	 * own, or the first exception.
+	 */
+	@Test
+	void sharedAcrossASet() throws IOException {
+		List<String> texts = Arrays.asList("A[b]+1", "A[b]*2", "b - A[b]", "(A[b]+1)*(A[b]+1)");
+		ExpressionSet set = new ExpressionSet(texts);
+		assertTrue(set.deduplicated() > 0);
+		int[] A = {4, 6};
+		for (int b = 0; b < 2; b++) {
+			int[] separate = new int[texts.size()];
+			for (int i = 0; i < separate.length; i++) {
+				CompiledExpression ce = CompiledExpression.parse(texts.get(i));
+				Bindings bindings = ce.newBindings();
+				bindings.setArray("A", A);
+				bindings.setScalar("b", b);
+				separate[i] = ce.evaluate(bindings);
+			}
+			set.loadSymbolValues(values(b));
+			assertArrayEquals(separate, set.evaluate());
+		}
+		set.loadSymbolValues(values(2));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> set.evaluate());
+	}
+
+	private Path values(int b) throws IOException {
+		return Files.writeString(dir.resolve("values" + b + ".txt"), "b " + b + "\nA 2 (0,4) (1,6)\n");
+	}
+}
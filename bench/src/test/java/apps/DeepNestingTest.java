@@ -0,0 +1,147 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Parses and evaluates expressions nested far deeper than Node.RECURSION_LIMIT, in
+ * every engine, on a thread whose stack is too small for any of them to recurse
+ * once per level.
+ */
+class DeepNestingTest {
+
+	private static final int DEPTH = 100000;
+
+	/**
+	 * Smaller than the default thread stack, so that a recursion per level overflows
+	 * however small its frames are
+	 */
+	private static final long STACK = 256 * 1024;
+
+	/**
+	 * A[i] is (i+1) % 3
+	 */
+	private static final int[] A = {1, 2, 0};
+
+	@TempDir
+	static Path dir;
+
+	private static Path values;
+
+	@BeforeAll
+	static void write() throws IOException {
+		values = Files.writeString(dir.resolve("values.txt"), "a 1\nA 3 (0,1) (1,2) (2,0)\n");
+	}
+
+	@Test
+	void parentheses() throws Throwable {
+		check("(".repeat(DEPTH) + "a" + ")".repeat(DEPTH), a -> a);
+	}
+
+	@Test
+	void leftChain() throws Throwable {
+		check("a" + "-a".repeat(DEPTH), a -> a - DEPTH * a);
+	}
+
+	@Test
+	void rightChain() throws Throwable {
+		check("a-(".repeat(DEPTH) + "a" + ")".repeat(DEPTH), a -> DEPTH % 2 == 0 ? a : 0);
+	}
+
+	@Test
+	void negations() throws Throwable {
+		check("-(".repeat(DEPTH) + "a" + ")".repeat(DEPTH), a -> DEPTH % 2 == 0 ? a : -a);
+	}
+
+	@Test
+	void subscripts() throws Throwable {
+		check("A[".repeat(DEPTH) + "a" + "]".repeat(DEPTH), a -> (a + DEPTH) % 3);
+	}
+
+	/**
+	 * Evaluates text with a = 1 and A from the values file, then with a = 2, in every
+	 * mode, with and without overflow checks, typed, in batches and in a set.
+	 */
+	private static void check(String text, IntUnaryOperator expected) throws Throwable {
+		onSmallStack(() -> {
+			for (Expression.Mode mode : Expression.Mode.values()) {
+				Expression e = new Expression(text);
+				e.setMode(mode);
+				e.loadSymbolValues(values);
+				assertEvaluates(e, expected.applyAsInt(1), mode);
+				e.setScalarValue("a", 2);
+				assertEvaluates(e, expected.applyAsInt(2), mode);
+			}
+
+			CompiledExpression compiled = CompiledExpression.parse(text);
+			Bindings bindings = compiled.newBindings();
+			bindings.setScalar("a", 2);
+			if (compiled.arrayCount() > 0) {
+				bindings.setArray("A", A);
+			}
+			int value = expected.applyAsInt(2);
+			assertEquals(value, compiled.evaluate(bindings));
+			assertEquals(value, compiled.evaluateInt(bindings));
+			assertEquals(value, compiled.evaluateIntExact(bindings));
+			assertEquals(value, compiled.evaluateLong(bindings));
+			assertEquals(value, compiled.evaluateLongExact(bindings));
+			assertEquals(value, compiled.evaluateDouble(bindings));
+
+			Expression batch = new Expression(compiled);
+			int[][] columns = new int[batch.scalars.size()][];
+			columns[batch.scalarSlot("a")] = new int[] {1, 2};
+			int[][] arrays = new int[batch.arrays.size()][];
+			if (arrays.length > 0) {
+				arrays[batch.arraySlot("A")] = A;
+			}
+			int[] results = new int[2];
+			batch.evaluateBatch(columns, arrays, results);
+			assertEquals(expected.applyAsInt(1), results[0]);
+			assertEquals(expected.applyAsInt(2), results[1]);
+
+			ExpressionSet set = new ExpressionSet(List.of(text, "a+1"));
+			set.loadSymbolValues(values);
+			assertEquals(expected.applyAsInt(1), set.evaluate()[0]);
+		});
+	}
+
+	private static void assertEvaluates(Expression e, int value, Expression.Mode mode) {
+		e.setOverflowChecked(false);
+		assertEquals(value, e.evaluateInt(), mode + " int");
+		assertEquals(value, e.evaluateLong(), mode + " long");
+		assertEquals(value, e.evaluateDouble(), mode + " double");
+		e.setOverflowChecked(true);
+		assertEquals(value, e.evaluateInt(), mode + " checked int");
+		assertEquals(value, e.evaluateLong(), mode + " checked long");
+	}
+
+	/**
+	 * Runs a check on a new thread with a STACK-byte stack, and rethrows whatever it
+	 * threw, a StackOverflowError included.
+	 */
+	private static void onSmallStack(Executable check) throws Throwable {
+		Throwable[] thrown = new Throwable[1];
+		Thread thread = new Thread(null, () -> {
+			try {
+				check.execute();
+			} catch (Throwable t) {
+				thrown[0] = t;
+			}
+		}, "deep", STACK);
+		thread.start();
+		thread.join();
+		if (thrown[0] != null) {
+			throw thrown[0];
+		}
+	}
+}
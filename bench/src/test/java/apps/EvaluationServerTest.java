@@ -0,0 +1,149 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+@Timeout(60)
+class EvaluationServerTest {
+
+	private static final int CLIENTS = 8;
+	private static final int REQUESTS = 500;
+
+	@TempDir
+	Path dir;
+
+	private EvaluationServer server;
+	private SocketAddress address;
+	private String values;
+
+	@BeforeEach
+	void start() throws IOException {
+		values = Files.writeString(dir.resolve("values.txt"), "a 3\nb 2\nA 5 (2,3) (4,5)\n").toString();
+		server = new EvaluationServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new ExpressionCache(64));
+		address = server.start();
+	}
+
+	@AfterEach
+	void stop() throws IOException {
+		server.close();
+	}
+
+	@Test
+	void concurrentClientsGetTheirOwnResults() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(CLIENTS);
+		try {
+			List<Future<Integer>> done = new ArrayList<Future<Integer>>();
+			for (int c = 0; c < CLIENTS; c++) {
+				int k = c;
+				done.add(pool.submit(() -> {
+					int ok = 0;
+					try (EvaluationClient client = new EvaluationClient(address)) {
+						for (int i = 0; i < REQUESTS; i++) {
+							// each client mixes its own expression with one all clients share
+							assertEquals(3 * k + 5, client.evaluate("a*" + k + "+A[4]", values));
+							assertEquals(11, client.evaluate("a * b + A[4]", values));
+							assertEquals(14, client.evaluate("2*(3+4)", null));
+							ok++;
+						}
+					}
+					return ok;
+				}));
+			}
+			for (Future<Integer> f : done) {
+				assertEquals(REQUESTS, f.get());
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		try (EvaluationClient client = new EvaluationClient(address)) {
+			String stats = client.request("STATS");
+			assertTrue(stats.startsWith("requests=" + (CLIENTS * REQUESTS * 3 + 1) + " "), stats); // STATS counts itself
+			assertTrue(stats.endsWith("files=1"), stats);
+		}
+	}
+
+	@Test
+	void errorsAreRepliedAndTheConnectionStaysUsable() throws IOException {
+		try (EvaluationClient client = new EvaluationClient(address)) {
+			IOException malformed = assertThrows(IOException.class, () -> client.evaluate("a b", values));
+			assertTrue(malformed.getMessage().startsWith("missing operator"), malformed.getMessage());
+			String missing = dir.resolve("missing.txt").toString();
+			IOException noFile = assertThrows(IOException.class, () -> client.evaluate("a+b", missing));
+			assertTrue(noFile.getMessage().startsWith("no such file: "), noFile.getMessage());
+			IOException divide = assertThrows(IOException.class, () -> client.evaluate("a/(b-2)", values));
+			assertTrue(divide.getMessage().contains("by zero"), divide.getMessage());
+			IOException unknown = assertThrows(IOException.class, () -> client.request("FROB"));
+			assertEquals("unknown request: FROB", unknown.getMessage());
+			assertEquals("", client.request("PING"));
+			assertEquals(11, client.evaluate("a*b+A[4]", values));
+		}
+	}
+
+	@Test
+	void eachVersionOfAFileIsLoadedOnce() throws Exception {
+		StringBuilder lines = new StringBuilder("a 3\n");
+		for (int i = 0; i < 20000; i++) {
+			lines.append('s').append(i).append(' ').append(i).append('\n');
+		}
+		Path big = Files.writeString(dir.resolve("big.txt"), lines);
+		Metrics.reset();
+		assertEquals(CLIENTS, evaluateAtOnce("EVAL a+1\t" + big, "OK 4"));
+		assertEquals(1, Metrics.snapshot().count(Metrics.Phase.LOAD));
+
+		Files.writeString(big, lines.insert(0, "a 4\n"));
+		Files.setLastModifiedTime(big, FileTime.fromMillis(Files.getLastModifiedTime(big).toMillis() + 1000));
+		assertEquals(CLIENTS, evaluateAtOnce("EVAL a+1\t" + big, "OK 5"));
+		assertEquals(2, Metrics.snapshot().count(Metrics.Phase.LOAD));
+	}
+
+	/**
+	 * Sends the same request from CLIENTS threads released together.
+	 *
+	 * @return Number of threads that got the expected response
+	 */
+	private int evaluateAtOnce(String request, String expected) throws Exception {
+		CyclicBarrier together = new CyclicBarrier(CLIENTS);
+		ExecutorService pool = Executors.newFixedThreadPool(CLIENTS);
+		try {
+			List<Future<String>> responses = new ArrayList<Future<String>>();
+			for (int c = 0; c < CLIENTS; c++) {
+				responses.add(pool.submit(() -> {
+					together.await();
+					return server.respond(request);
+				}));
+			}
+			int ok = 0;
+			for (Future<String> response : responses) {
+				assertEquals(expected, response.get());
+				ok++;
+			}
+			return ok;
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+class ExpressionCacheTest {
+
+	@Test
+	void spacingDoesNotMatter() {
+		ExpressionCache cache = new ExpressionCache(4);
+		assertSame(cache.get("a+b*A[c]"), cache.get(" a + b * A[ c ] "));
+		assertEquals(1, cache.misses());
+		assertEquals(1, cache.hits());
+	}
+
+	@Test
+	void spaceBetweenTokensIsKept() {
+		ExpressionCache cache = new ExpressionCache(4);
+		IllegalArgumentException direct = assertThrows(IllegalArgumentException.class, () -> CompiledExpression.parse("a b"));
+		IllegalArgumentException cached = assertThrows(IllegalArgumentException.class, () -> cache.get("a b"));
+		assertEquals(direct.getMessage(), cached.getMessage());
+		assertEquals(0, cache.size());
+		assertThrows(IllegalArgumentException.class, () -> cache.get("1 2"));
+		assertThrows(IllegalArgumentException.class, () -> cache.get("A [0]"));
+		assertEquals(1, cache.get("ab").scalarCount());
+		assertEquals(1, cache.get("A[0]").arrayCount());
+	}
+
+	@Test
+	void keysAreDistinctForDistinctTokens() {
+		assertEquals(ExpressionCache.normalize("a+b"), ExpressionCache.normalize("a + b"));
+		assertNotEquals(ExpressionCache.normalize("ab"), ExpressionCache.normalize("a b"));
+		assertEquals("a b", ExpressionCache.normalize("a  b"));
+		assertEquals("ab", ExpressionCache.normalize("ab"));
+		assertEquals("A[ 0 ]", ExpressionCache.normalize("A[0]"));
+		assertEquals("A [ 0 ]", ExpressionCache.normalize("A [0]"));
+	}
+
+	@Test
+	void evictsLeastRecentlyUsed() {
+		ExpressionCache cache = new ExpressionCache(2);
+		CompiledExpression a = cache.get("a");
+		cache.get("b");
+		cache.get("a");
+		cache.get("c");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.evictions());
+		assertSame(a, cache.get("a"));
+	}
+
+	private static final int THREADS = 8;
+	private static final int LOOKUPS = 20000;
+
+	@Test
+	@Timeout(60)
+	void contendedHits() throws Exception {
+		ExpressionCache cache = new ExpressionCache(16);
+		String[] texts = new String[8];
+		CompiledExpression[] cached = new CompiledExpression[texts.length];
+		for (int i = 0; i < texts.length; i++) {
+			texts[i] = "a" + i + "*(b+A[" + i + "])";
+			cached[i] = cache.get(texts[i]);
+		}
+		inParallel(t -> {
+			for (int i = 0; i < LOOKUPS; i++) {
+				int e = (i + t) % texts.length;
+				assertSame(cached[e], cache.get(i % 2 == 0 ? texts[e] : " " + texts[e] + " "));
+			}
+		});
+		assertEquals((long)THREADS * LOOKUPS, cache.hits());
+		assertEquals(texts.length, cache.misses());
+		assertEquals(0, cache.evictions());
+		assertEquals(texts.length, cache.size());
+	}
+
+	@Test
+	@Timeout(60)
+	void hitsWhileEvicting() throws Exception {
+		ExpressionCache cache = new ExpressionCache(4);
+		inParallel(t -> {
+			for (int i = 0; i < LOOKUPS; i++) {
+				// mostly the same two texts, now and then one of many others
+				String text = i % 16 == 0 ? "c" + (i * 7 + t) % 64 : "a" + i % 2;
+				assertEquals(text, cache.get(text).text());
+			}
+		});
+		assertTrue(cache.size() <= 4, "size " + cache.size());
+		assertEquals((long)THREADS * LOOKUPS, cache.hits() + cache.misses());
+		// a miss inserts and maybe evicts, unless another thread inserted the text first
+		assertTrue(cache.evictions() > 0 && cache.evictions() <= cache.misses() - cache.size(), cache.toString());
+	}
+
+	interface Lookups {
+		void run(int thread) throws Exception;
+	}
+
+	/**
+	 * Runs lookups on THREADS threads at once, and rethrows the first failure.
+	 */
+	private static void inParallel(Lookups lookups) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				int thread = t;
+				tasks.add(() -> {
+					lookups.run(thread);
+					return null;
+				});
+			}
+			for (Future<Void> done : pool.invokeAll(tasks)) {
+				done.get();
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+}
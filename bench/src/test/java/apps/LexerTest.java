@@ -0,0 +1,104 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.IntFunction;
+
+import org.junit.jupiter.api.Test;
+
+class LexerTest {
+
+	private static final int LARGE = 1000000;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	@Test
+	void tokens() {
+		Lexer tokens = Lexer.lex(" a1+ A[12]*(b) ");
+		assertEquals(10, tokens.count);
+		byte[] types = {Lexer.SCALAR, Lexer.OPERATOR, Lexer.ARRAY, Lexer.OPEN, Lexer.CONSTANT, Lexer.CLOSE, Lexer.OPERATOR, Lexer.OPEN, Lexer.SCALAR, Lexer.CLOSE};
+		for (int i = 0; i < types.length; i++) {
+			assertEquals(types[i], tokens.types[i], "token " + i);
+		}
+		assertEquals("a1", tokens.token(0));
+		assertEquals("12", tokens.token(4));
+		assertEquals('A', tokens.first(2));
+		assertEquals(Lexer.SCALAR, Lexer.lex("A [0]").types[0]);
+		assertThrows(IllegalArgumentException.class, () -> Lexer.lex("a % b"));
+	}
+
+	/**
+	 * "1+1+...+1" with about n characters.
+	 */
+	private static String sum(int n) {
+		return "1+".repeat(n / 2 - 1) + "1";
+	}
+
+	/**
+	 * a in about n characters of parentheses.
+	 */
+	private static String parens(int n) {
+		return "(".repeat(n / 2) + "a" + ")".repeat(n / 2);
+	}
+
+	/**
+	 * A[A[...A[0]...]] in about n characters, nested n/3 deep.
+	 */
+	private static String subscripts(int n) {
+		return "A[".repeat(n / 3) + "0" + "]".repeat(n / 3);
+	}
+
+	@Test
+	void millionCharacterExpressions() {
+		CompiledExpression sum = CompiledExpression.parse(sum(LARGE));
+		assertEquals(LARGE / 2, sum.evaluate(sum.newBindings()));
+
+		CompiledExpression parens = CompiledExpression.parse(parens(LARGE));
+		Bindings a = parens.newBindings();
+		a.setScalar("a", 7);
+		assertEquals(7, parens.evaluate(a));
+
+		CompiledExpression subscripts = CompiledExpression.parse(subscripts(LARGE));
+		Bindings next = subscripts.newBindings();
+		next.setArray("A", new int[] {1, 2, 0});
+		assertEquals(LARGE / 3 % 3, subscripts.evaluate(next));
+	}
+
+	@Test
+	void tokensGrowLinearly() {
+		assertEquals(LARGE - 1, Lexer.lex(sum(LARGE)).count);
+		assertEquals(LARGE + 1, Lexer.lex(parens(LARGE)).count);
+		assertEquals(3 * (LARGE / 3) + 1, Lexer.lex(subscripts(LARGE)).count);
+	}
+
+	/**
+	 * Lexing and parsing ten times the text allocates about ten times as much, where a
+	 * step that copied or rescanned the rest of the text per token would allocate about
+	 * a hundred times as much. Bytes allocated do not depend on the speed of the machine
+	 * the way times do.
+	 */
+	@Test
+	void workGrowsLinearly() {
+		assertLinear(LexerTest::sum);
+		assertLinear(LexerTest::parens);
+		assertLinear(LexerTest::subscripts);
+	}
+
+	private static void assertLinear(IntFunction<String> expression) {
+		String small = expression.apply(LARGE / 10);
+		String large = expression.apply(LARGE);
+		allocated(small); // load and compile the lexer and parser first
+		double ratio = (double)allocated(large) / allocated(small);
+		assertTrue(ratio > 5 && ratio < 20, "10x the text allocated " + ratio + "x as much");
+	}
+
+	private static long allocated(String text) {
+		long start = THREADS.getCurrentThreadAllocatedBytes();
+		Lexer.lex(text);
+		Parser.parse(text, new SymbolTable());
+		return THREADS.getCurrentThreadAllocatedBytes() - start;
+	}
+}
@@ -0,0 +1,80 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+	private static final int EVALUATIONS = 10000;
+
+	@BeforeEach
+	void reset() {
+		Metrics.reset();
+	}
+
+	@Test
+	void freshExpressionsAreCounted() {
+		for (int i = 0; i < EVALUATIONS; i++) {
+			assertEquals(3f, new Expression("1+2").evaluate());
+		}
+		Metrics.Snapshot snapshot = Metrics.snapshot();
+		assertEquals(EVALUATIONS, snapshot.evaluations());
+		assertSampled(snapshot);
+	}
+
+	@Test
+	void freshBindingsAreCounted() {
+		CompiledExpression compiled = CompiledExpression.parse("a*2");
+		for (int i = 0; i < EVALUATIONS; i++) {
+			Bindings bindings = compiled.newBindings();
+			bindings.setScalar("a", i);
+			assertEquals(2 * i, compiled.evaluate(bindings));
+		}
+		Metrics.Snapshot snapshot = Metrics.snapshot();
+		assertEquals(EVALUATIONS, snapshot.evaluations());
+		assertSampled(snapshot);
+	}
+
+	@Test
+	void reusedBindingsAreCountedExactly() {
+		CompiledExpression compiled = CompiledExpression.parse("a*2");
+		Bindings bindings = compiled.newBindings();
+		for (int i = 0; i < EVALUATIONS + 7; i++) {
+			compiled.evaluateLong(bindings);
+		}
+		assertEquals(EVALUATIONS + 7, Metrics.snapshot().evaluations());
+	}
+
+	@Test
+	void serverEvaluationsAreCounted() throws IOException {
+		EvaluationServer server = new EvaluationServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new ExpressionCache(4));
+		try {
+			SocketAddress address = server.start();
+			try (EvaluationClient client = new EvaluationClient(address)) {
+				for (int i = 0; i < 1000; i++) {
+					assertEquals(i + 1, client.evaluate(i + "+1", null));
+				}
+			}
+		} finally {
+			server.close();
+		}
+		assertEquals(1000, Metrics.snapshot().evaluations());
+	}
+
+	/**
+	 * About one in SAMPLE evaluations is timed; the chance of none being timed out of
+	 * EVALUATIONS is negligible.
+	 */
+	private static void assertSampled(Metrics.Snapshot snapshot) {
+		long timed = snapshot.timed(Metrics.Phase.EVALUATE);
+		assertTrue(timed > 0 && timed < EVALUATIONS / 8, "timed " + timed);
+	}
+}
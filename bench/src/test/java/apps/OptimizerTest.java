@@ -0,0 +1,108 @@
+package apps;
+
+import static apps.RandomExpressions.outcome;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import structures.IntArray;
+
+/**
+ * A simplified tree gives the value of the tree as parsed, or throws what it throws.
+ */
+class OptimizerTest {
+
+	/**
+	 * Checks that the simplified tree of an expression matches the parsed tree on the
+	 * given scalar values, in slot order, with the arrays of RandomExpressions.
+	 *
+	 * @return Simplified tree
+	 */
+	private static Node assertSameOutcome(String text, int... scalars) {
+		CompiledExpression ce = CompiledExpression.parse(text);
+		Bindings bindings = ce.newBindings();
+		for (int i = 0; i < scalars.length; i++) {
+			bindings.setScalar(i, scalars[i]);
+		}
+		bind(ce, bindings);
+		int[] s = bindings.scalars;
+		IntArray[] a = bindings.arrays;
+		assertEquals(outcome(() -> ce.parsed.eval(s, a)), outcome(() -> ce.optimized.eval(s, a)), text);
+		return ce.optimized;
+	}
+
+	private static void bind(CompiledExpression ce, Bindings bindings) {
+		if (ce.arraySlot("A") >= 0) {
+			bindings.setArray("A", RandomExpressions.A);
+		}
+		if (ce.arraySlot("B") >= 0) {
+			bindings.setArray("B", RandomExpressions.B);
+		}
+	}
+
+	@Test
+	void generatedExpressions() {
+		RandomExpressions random = new RandomExpressions(11);
+		for (int i = 0; i < 2000; i++) {
+			String text = random.next(6);
+			CompiledExpression ce = CompiledExpression.parse(text);
+			for (int v = 0; v < 4; v++) {
+				Bindings bindings = ce.newBindings();
+				random.bind(ce, bindings);
+				int[] s = bindings.scalars;
+				IntArray[] a = bindings.arrays;
+				assertEquals(outcome(() -> ce.parsed.eval(s, a)), outcome(() -> ce.optimized.eval(s, a)), text);
+			}
+		}
+	}
+
+	@Test
+	void timesZeroKeepsWhatCanThrow() {
+		Node kept = assertSameOutcome("(1/a)*0", 0);
+		assertFalse(kept instanceof Node.Constant, kept.toString());
+		assertSameOutcome("0*A[a]", 8);
+		assertSameOutcome("B[a-1]*0 + 1", 0);
+		assertSameOutcome("(a/(b-b))*0", 1, 2);
+		assertTrue(Optimizer.canThrow(CompiledExpression.parse("a/b").parsed));
+		assertTrue(Optimizer.canThrow(CompiledExpression.parse("a/0").parsed));
+		assertTrue(Optimizer.canThrow(CompiledExpression.parse("A[0]").parsed));
+	}
+
+	@Test
+	void timesZeroDropsWhatCannotThrow() {
+		assertEquals(0, ((Node.Constant)assertSameOutcome("a*0", 7)).value);
+		assertEquals(0, ((Node.Constant)assertSameOutcome("0*(a/2-b*3)", 7, Integer.MIN_VALUE)).value);
+		assertFalse(Optimizer.canThrow(CompiledExpression.parse("a/2").parsed));
+	}
+
+	@Test
+	void divisionByConstantZeroIsNotFolded() {
+		assertSameOutcome("6/0");
+		assertSameOutcome("(6/0)*0");
+		assertSameOutcome("a/(1-1)", 3);
+	}
+
+	@Test
+	void identitiesAndNegation() {
+		int min = Integer.MIN_VALUE;
+		assertTrue(assertSameOutcome("a+0-0*1/1", min) instanceof Node.Scalar);
+		assertTrue(assertSameOutcome("--a", min) instanceof Node.Scalar);
+		assertTrue(assertSameOutcome("0-a", min) instanceof Node.Negate);
+		assertTrue(assertSameOutcome("a*-1", min) instanceof Node.Negate);
+		assertTrue(assertSameOutcome("-(1)*a", min) instanceof Node.Negate);
+		assertSameOutcome("a/-1", min);
+	}
+
+	@Test
+	void constantChainsWrapAround() {
+		int max = Integer.MAX_VALUE;
+		Node sum = assertSameOutcome("a+2147483647+1-5", max);
+		assertEquals(3, Optimizer.size(sum), sum.toString());
+		Node product = assertSameOutcome("a*65536*65536*3", max);
+		assertEquals(1, Optimizer.size(product), product.toString());
+		assertSameOutcome("a*3*4 - (a+2-5)", max);
+		assertSameOutcome("2147483647+1+a", 1);
+	}
+}
@@ -0,0 +1,97 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Generates random expressions over the scalars a to d and the arrays A and B, for
+ * comparing ways of evaluating the same text. Subexpressions are now and then repeated,
+ * so that there is something to share, and values are picked so that subscripts are
+ * often in bounds, operations often overflow and divisors are often zero.
+ */
+final class RandomExpressions {
+
+	static final String[] SCALARS = {"a", "b", "c", "d"};
+
+	static final int[] A = {3, -1, 0, 7, 2, Integer.MIN_VALUE, 1, Integer.MAX_VALUE};
+	static final int[] B = {2, 0, 1};
+
+	private static final String[] CONSTANTS = {"0", "1", "2", "5", "6", "127", "128", "32767", "32768", "65536", "2147483647"};
+	private static final int[] VALUES = {0, 1, 2, 3, -1, 7, 46341, -46341, Integer.MIN_VALUE, Integer.MAX_VALUE};
+	private static final String[] OPERATORS = {"+", "-", "*", "/"};
+
+	private final Random random;
+	private final List<String> seen = new ArrayList<String>();
+
+	RandomExpressions(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * @param depth Most operators or subscripts on a path from the root
+	 * @return New expression text
+	 */
+	String next(int depth) {
+		seen.clear();
+		return expression(depth);
+	}
+
+	private String expression(int depth) {
+		if (!seen.isEmpty() && random.nextInt(6) == 0) {
+			return seen.get(random.nextInt(seen.size()));
+		}
+		String text;
+		switch (depth == 0 ? random.nextInt(2) : random.nextInt(7)) {
+		case 0:
+			text = CONSTANTS[random.nextInt(CONSTANTS.length)];
+			break;
+		case 1:
+			text = SCALARS[random.nextInt(SCALARS.length)];
+			break;
+		case 2:
+			text = (random.nextBoolean() ? "A[" : "B[") + expression(depth - 1) + "]";
+			break;
+		case 3:
+			text = "-(" + expression(depth - 1) + ")";
+			break;
+		default:
+			text = "(" + expression(depth - 1) + OPERATORS[random.nextInt(OPERATORS.length)] + expression(depth - 1) + ")";
+			break;
+		}
+		seen.add(text);
+		return text;
+	}
+
+	/**
+	 * Gives every scalar of an expression a random value, and its arrays A and B.
+	 */
+	void bind(CompiledExpression compiled, Bindings bindings) {
+		for (String name : SCALARS) {
+			int slot = compiled.scalarSlot(name);
+			if (slot >= 0) {
+				bindings.setScalar(slot, VALUES[random.nextInt(VALUES.length)]);
+			}
+		}
+		if (compiled.arraySlot("A") >= 0) {
+			bindings.setArray("A", A);
+		}
+		if (compiled.arraySlot("B") >= 0) {
+			bindings.setArray("B", B);
+		}
+	}
+
+	/**
+	 * @return Value of an evaluation, or the class of the exception it threw
+	 */
+	static Object outcome(Callable<?> evaluation) {
+		try {
+			return evaluation.call();
+		} catch (RuntimeException e) {
+			return e.getClass();
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Every way of loading a symbol values file gives a symbol that is on more than one
+ * line the value of its first line, and keeps scalars and arrays of the same name
+ * apart, whether or not the file has an index.
+ */
+class SymbolLoadingTest {
+
+	private static final String TEXT = "a+b+A[1]";
+	private static final String VALUES = "a 1\nb 5\nA 3 (1,10)\na 2\nA 3 (1,20)\nb 6\n";
+	private static final int FIRST = 1 + 5 + 10;
+
+	@TempDir
+	Path dir;
+
+	private Path file;
+
+	@BeforeEach
+	void write() throws IOException {
+		file = Files.writeString(dir.resolve("values.txt"), VALUES);
+	}
+
+	@Test
+	void firstLineWinsWithoutIndex() throws IOException {
+		assertEveryLoaderGives(FIRST);
+	}
+
+	@Test
+	void firstLineWinsWithIndex() throws IOException {
+		assertEquals(3, SymbolIndex.write(file));
+		assertEveryLoaderGives(FIRST);
+	}
+
+	@Test
+	void laterLinesForOtherSymbolsStillLoad() throws IOException {
+		Files.writeString(file, "a 1\na 2\nA 3 (1,10)\nb 5\n");
+		assertEveryLoaderGives(FIRST);
+		SymbolIndex.write(file);
+		assertEveryLoaderGives(FIRST);
+	}
+
+	@Test
+	void scalarAndArrayOfOneName() throws IOException {
+		String text = "a + a[1]";
+		Files.writeString(file, "a 3\na 5 (1,2)\na 4\na 5 (1,7)\n");
+		assertEveryLoaderGives(text, 3 + 2);
+		assertEquals(2, SymbolIndex.write(file));
+		assertEveryLoaderGives(text, 3 + 2);
+
+		Files.writeString(file, "a 5 (1,2)\na 3\n");
+		SymbolIndex.write(file);
+		assertEveryLoaderGives(text, 3 + 2);
+	}
+
+	@Test
+	void staleIndexCountsOnlyTheFullRead() throws IOException {
+		Files.writeString(file, "a 1\nb 5\nA 3 (1,10)\n");
+		SymbolIndex.write(file);
+		FileTime modified = Files.getLastModifiedTime(file);
+		// same size and time, so the index is opened, but b is no longer where it says
+		Files.writeString(file, "a 1\nc 5\nA 3 (1,10)\n");
+		Files.setLastModifiedTime(file, modified);
+
+		Metrics.reset();
+		Expression read = new Expression(TEXT);
+		read.loadSymbolValues(file);
+		assertEquals(1 + 10, read.evaluateInt());
+		Metrics.Snapshot loads = Metrics.snapshot();
+		assertEquals(2, loads.symbolsLoaded());
+		assertEquals(Files.size(file), loads.bytesParsed());
+	}
+
+	private void assertEveryLoaderGives(int value) throws IOException {
+		assertEveryLoaderGives(TEXT, value);
+	}
+
+	private void assertEveryLoaderGives(String text, int value) throws IOException {
+		Expression scanned = new Expression(text);
+		scanned.buildSymbols();
+		try (Scanner sc = new Scanner(file)) {
+			scanned.loadSymbolValues(sc);
+		}
+		assertEquals(value, scanned.evaluateInt(), "Scanner");
+
+		Expression read = new Expression(text);
+		read.loadSymbolValues(file);
+		assertEquals(value, read.evaluateInt(), "file");
+
+		Expression channeled = new Expression(text);
+		try (FileChannel ch = FileChannel.open(file)) {
+			channeled.loadSymbolValues(ch);
+		}
+		assertEquals(value, channeled.evaluateInt(), "channel");
+
+		CompiledExpression ce = CompiledExpression.parse(text);
+		Bindings bindings = ce.newBindings();
+		bindings.loadSymbolValues(file);
+		assertEquals(value, ce.evaluate(bindings), "Bindings");
+
+		Expression stored = new Expression(text);
+		stored.bindSymbolValues(SymbolStore.load(file));
+		assertEquals(value, stored.evaluateInt(), "SymbolStore");
+
+		ExpressionSet set = new ExpressionSet(Arrays.asList(text, "a"));
+		set.loadSymbolValues(file);
+		assertEquals(value, set.evaluate()[0], "ExpressionSet");
+	}
+}
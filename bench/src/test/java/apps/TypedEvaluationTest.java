@@ -0,0 +1,160 @@
+package apps;
+
+import static apps.RandomExpressions.outcome;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checked int and long, long and double evaluation, compiled to bytecode and, for an
+ * expression too deep for that, run on the typed stack machine.
+ */
+class TypedEvaluationTest {
+
+	private static final long MIN = Integer.MIN_VALUE;
+
+	/**
+	 * Nests an expression inside enough 1*(...) to make it too deep to compile, without
+	 * changing its value, the sign of a zero double included, or what it throws.
+	 */
+	private static String deep(String text) {
+		int depth = Node.RECURSION_LIMIT + 10;
+		return "1*(".repeat(depth) + text + ")".repeat(depth);
+	}
+
+	private static CompiledExpression[] bothWays(String text) {
+		CompiledExpression shallow = CompiledExpression.parse(text);
+		CompiledExpression deep = CompiledExpression.parse(deep(text));
+		assertFalse(shallow.deep, text);
+		assertTrue(deep.deep, text);
+		return new CompiledExpression[] {shallow, deep};
+	}
+
+	private static Bindings bind(CompiledExpression ce) {
+		Bindings bindings = ce.newBindings();
+		if (ce.scalarSlot("m") >= 0) {
+			bindings.setScalar("m", Integer.MIN_VALUE);
+		}
+		if (ce.scalarSlot("n") >= 0) {
+			bindings.setScalar("n", -1);
+		}
+		if (ce.arrayCount() > 0) {
+			bindings.setArray("A", new int[] {0, 1});
+		}
+		return bindings;
+	}
+
+	/**
+	 * Checks an expression over m = Integer.MIN_VALUE and n = -1 whose value does not
+	 * fit in an int: checked int arithmetic throws, unchecked int arithmetic wraps, and
+	 * long and double arithmetic get the true value.
+	 */
+	private static void assertOverflowsInt(String text, int wrapped, long value) {
+		for (CompiledExpression ce : bothWays(text)) {
+			Bindings bindings = bind(ce);
+			String how = (ce.deep ? "deep " : "") + text;
+			assertThrows(ArithmeticException.class, () -> ce.evaluateIntExact(bindings), how);
+			assertEquals(wrapped, ce.evaluate(bindings), how);
+			assertEquals(value, ce.evaluateLong(bindings), how);
+			assertEquals(value, ce.evaluateLongExact(bindings), how);
+			assertEquals((double)value, ce.evaluateDouble(bindings), how);
+		}
+	}
+
+	@Test
+	void divideMinByMinusOne() {
+		assertOverflowsInt("m/n", Integer.MIN_VALUE, -MIN);
+	}
+
+	@Test
+	void negateMin() {
+		assertOverflowsInt("-m", Integer.MIN_VALUE, -MIN);
+		assertOverflowsInt("-(m)", Integer.MIN_VALUE, -MIN);
+	}
+
+	@Test
+	void multiplyMinByMinusOne() {
+		assertOverflowsInt("m*n", Integer.MIN_VALUE, -MIN);
+		assertOverflowsInt("n*m", Integer.MIN_VALUE, -MIN);
+		assertOverflowsInt("A[n*n]*m*n", Integer.MIN_VALUE, -MIN);
+	}
+
+	@Test
+	void addAndSubtractPastTheEnds() {
+		assertOverflowsInt("m+n", Integer.MAX_VALUE, MIN - 1);
+		assertOverflowsInt("m-1", Integer.MAX_VALUE, MIN - 1);
+		assertOverflowsInt("0-m", Integer.MIN_VALUE, -MIN);
+	}
+
+	@Test
+	void overflowInLongArithmetic() {
+		// MIN^3 * -2 is 2^94: past a long, but not a double
+		String text = "m*m*m*n*2";
+		for (CompiledExpression ce : bothWays(text)) {
+			Bindings bindings = bind(ce);
+			assertThrows(ArithmeticException.class, () -> ce.evaluateIntExact(bindings));
+			assertThrows(ArithmeticException.class, () -> ce.evaluateLongExact(bindings));
+			assertEquals(MIN * MIN * MIN * -1 * 2, ce.evaluateLong(bindings));
+			assertEquals(Math.pow(2, 94), ce.evaluateDouble(bindings));
+		}
+	}
+
+	@Test
+	void divisionDoesNotTruncateInDoubles() {
+		for (CompiledExpression ce : bothWays("(m+1)/2 + n/2")) {
+			Bindings bindings = bind(ce);
+			assertEquals((MIN + 1) / 2 + -1 / 2, ce.evaluateIntExact(bindings));
+			assertEquals((MIN + 1) / 2, ce.evaluateLong(bindings));
+			assertEquals((MIN + 1) / 2.0 - 0.5, ce.evaluateDouble(bindings));
+		}
+	}
+
+	@Test
+	void divisionByZero() {
+		for (CompiledExpression ce : bothWays("m/(n+1)")) {
+			Bindings bindings = bind(ce);
+			assertThrows(ArithmeticException.class, () -> ce.evaluate(bindings));
+			assertThrows(ArithmeticException.class, () -> ce.evaluateIntExact(bindings));
+			assertThrows(ArithmeticException.class, () -> ce.evaluateLong(bindings));
+			assertThrows(ArithmeticException.class, () -> ce.evaluateLongExact(bindings));
+			assertEquals(Double.NEGATIVE_INFINITY, ce.evaluateDouble(bindings));
+		}
+	}
+
+	/**
+	 * The typed stack machine and the bytecode agree on every kind of evaluation of
+	 * generated expressions, values and exceptions alike.
+	 */
+	@Test
+	void stackMachineMatchesBytecode() {
+		RandomExpressions random = new RandomExpressions(21);
+		for (int i = 0; i < 300; i++) {
+			String text = random.next(5);
+			CompiledExpression[] both = bothWays(text);
+			for (int v = 0; v < 3; v++) {
+				Bindings shallow = both[0].newBindings();
+				random.bind(both[0], shallow);
+				Bindings deep = both[1].newBindings();
+				for (String name : RandomExpressions.SCALARS) {
+					if (both[0].scalarSlot(name) >= 0) {
+						deep.setScalar(name, shallow.getScalar(name));
+					}
+				}
+				if (both[0].arraySlot("A") >= 0) {
+					deep.setArray("A", RandomExpressions.A);
+				}
+				if (both[0].arraySlot("B") >= 0) {
+					deep.setArray("B", RandomExpressions.B);
+				}
+				assertEquals(outcome(() -> both[0].evaluate(shallow)), outcome(() -> both[1].evaluate(deep)), text);
+				assertEquals(outcome(() -> both[0].evaluateIntExact(shallow)), outcome(() -> both[1].evaluateIntExact(deep)), "exact " + text);
+				assertEquals(outcome(() -> both[0].evaluateLong(shallow)), outcome(() -> both[1].evaluateLong(deep)), "long " + text);
+				assertEquals(outcome(() -> both[0].evaluateLongExact(shallow)), outcome(() -> both[1].evaluateLongExact(deep)), "exact long " + text);
+				assertEquals(outcome(() -> both[0].evaluateDouble(shallow)), outcome(() -> both[1].evaluateDouble(deep)), "double " + text);
+			}
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package apps;
 
+import structures.DenseIntArray;
+import structures.IntArray;
+
 /**
  * This class encapsulates a (name, array of integer values) pair for an array variable. 
  * The name is a sequence of one or more letters. 
@@ -15,10 +18,20 @@ public class ArraySymbol {
 	public String name;
 	
 	/**
-	 * Array of integer values
+	 * Array of integer values, when they are stored densely
 	 */
 	public int[] values;
 	
+	/**
+	 * Values stored in some other way, used when values is null
+	 */
+	public IntArray storage;
+	
+	/**
+	 * Position of this symbol in its symbol table, -1 if it is not in one
+	 */
+	public int slot;
+	
 	/**
 	 * Initializes this symbol with given name, and sets values to null.
 	 * 
@@ -27,13 +40,44 @@ public class ArraySymbol {
 	public ArraySymbol(String name) {
         this.name = name;
         values = null;
+        storage = null;
+        slot = -1;
     }
 	
+	/**
+	 * Returns the values of this array, however they are stored. Dense values are
+	 * wrapped without copying.
+	 * 
+	 * @return Values, or null if none have been loaded
+	 */
+	public IntArray storage() {
+		if (values == null) {
+			return storage instanceof DenseIntArray ? null : storage; // a dense storage is stale once values is cleared
+		}
+		if (!(storage instanceof DenseIntArray) || ((DenseIntArray)storage).values != values) {
+			storage = new DenseIntArray(values);
+		}
+		return storage;
+	}
+	
+	/**
+	 * Sets the values of this array. Dense values also become the values field.
+	 * 
+	 * @param storage Values
+	 */
+	public void setStorage(IntArray storage) {
+		this.storage = storage;
+		values = storage instanceof DenseIntArray ? ((DenseIntArray)storage).values : null;
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		if (values == null || values.length == 0) {
+		if (values == null) {
+			return storage == null ? name + "=[ ]" : name + "=" + storage;
+		}
+		if (values.length == 0) {
 			return name + "=[ ]";
 		}
 		StringBuilder sb = new StringBuilder();
@@ -58,4 +102,11 @@ public class ArraySymbol {
 		ArraySymbol as = (ArraySymbol)o;
 		return name.equals(as.name);
 	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return name.hashCode();
+	}
 }
@@ -0,0 +1,260 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import structures.ByteStack;
+import structures.DenseIntArray;
+import structures.IntArray;
+import structures.Stack;
+
+/**
+ * Evaluates one parsed expression over many rows of scalar values. Rows are processed
+ * in blocks; within a block the tree is evaluated one node at a time over the whole
+ * block, so every operator becomes a simple loop over int arrays that the JIT can
+ * unroll and vectorize.
+ *
+ * An instance holds scratch buffers and must not be shared between threads.
+ */
+class BatchEvaluator {
+
+	/**
+	 * Rows per block, small enough for the scratch buffers to stay in cache
+	 */
+	static final int BLOCK = 1024;
+
+	private final Node tree;
+	private final ArrayList<int[]> free = new ArrayList<int[]>();
+
+	/**
+	 * Values of the shared subexpressions for the current block, by the scalar slot of
+	 * their Let
+	 */
+	private int[][] temps = new int[0][];
+
+	// work stacks of eval, kept so that evaluating again allocates nothing
+	private final Stack<Node> work = new Stack<Node>();
+	private final ByteStack visited = new ByteStack();
+	private final Stack<int[]> evaluated = new Stack<int[]>();
+
+	/**
+	 * @param tree Root of the parsed expression
+	 */
+	BatchEvaluator(Node tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * Evaluates rows [from, to) into results.
+	 *
+	 * @param scalars Scalar columns, indexed by scalar slot, then by row
+	 * @param arrays Array values, indexed by array slot
+	 * @param results Result for each row
+	 * @param from First row
+	 * @param to Row after the last
+	 */
+	void evaluate(int[][] scalars, IntArray[] arrays, int[] results, int from, int to) {
+		for (int start = from; start < to; start += BLOCK) {
+			int len = Math.min(BLOCK, to - start);
+			int[] block = eval(tree, scalars, arrays, start, len);
+			System.arraycopy(block, 0, results, start, len);
+			release(block);
+		}
+	}
+
+	/**
+	 * Evaluates rows [from, to) into float results.
+	 *
+	 * @param scalars Scalar columns, indexed by scalar slot, then by row
+	 * @param arrays Array values, indexed by array slot
+	 * @param results Result for each row
+	 * @param from First row
+	 * @param to Row after the last
+	 */
+	void evaluate(int[][] scalars, IntArray[] arrays, float[] results, int from, int to) {
+		for (int start = from; start < to; start += BLOCK) {
+			int len = Math.min(BLOCK, to - start);
+			int[] block = eval(tree, scalars, arrays, start, len);
+			for (int i = 0; i < len; i++) {
+				results[start + i] = block[i];
+			}
+			release(block);
+		}
+	}
+
+	/**
+	 * Evaluates a tree over one block of rows. Nodes are visited in evaluation order
+	 * with an explicit work stack: a node waits on it, marked as visited, while its
+	 * operands are evaluated, and the buffers of evaluated operands wait on a second
+	 * stack. Both are reused from block to block.
+	 *
+	 * @return Scratch buffer holding the values in its first len entries; the caller
+	 * releases it
+	 */
+	private int[] eval(Node tree, int[][] scalars, IntArray[] arrays, int start, int len) {
+		work.clear();
+		visited.clear();
+		evaluated.clear();
+		work.push(tree);
+		visited.push((byte)0);
+		while (!work.isEmpty()) {
+			Node node = work.pop();
+			if (visited.pop() == 0) {
+				if (isLeaf(node)) {
+					evaluated.push(leaf(node, scalars, start, len));
+					continue;
+				}
+				work.push(node);
+				visited.push((byte)1);
+				if (node instanceof Node.Binary) {
+					Node.Binary b = (Node.Binary)node;
+					if (!isLeaf(b.right)) { // a leaf right operand is read in place
+						work.push(b.right);
+						visited.push((byte)0);
+					}
+					work.push(b.left);
+				} else if (node instanceof Node.Subscript) {
+					work.push(((Node.Subscript)node).index);
+				} else if (node instanceof Node.Let) {
+					work.push(((Node.Let)node).value);
+				} else {
+					work.push(((Node.Negate)node).operand);
+				}
+				visited.push((byte)0);
+				continue;
+			}
+			if (node instanceof Node.Subscript) {
+				Node.Subscript s = (Node.Subscript)node;
+				IntArray values = arrays[s.slot];
+				int[] out = evaluated.peek();
+				if (values instanceof DenseIntArray) {
+					int[] dense = ((DenseIntArray)values).values;
+					for (int i = 0; i < len; i++) {
+						out[i] = dense[out[i]];
+					}
+				} else {
+					for (int i = 0; i < len; i++) {
+						out[i] = values.get(out[i]);
+					}
+				}
+			} else if (node instanceof Node.Let) {
+				System.arraycopy(evaluated.peek(), 0, temp(((Node.Let)node).slot), 0, len);
+			} else if (node instanceof Node.Negate) {
+				int[] out = evaluated.peek();
+				for (int i = 0; i < len; i++) {
+					out[i] = -out[i];
+				}
+			} else {
+				Node.Binary b = (Node.Binary)node;
+				if (b.right instanceof Node.Constant) {
+					applyConstant(b.op, evaluated.peek(), ((Node.Constant)b.right).value, len);
+				} else if (b.right instanceof Node.Scalar) {
+					apply(b.op, evaluated.peek(), scalars[((Node.Scalar)b.right).slot], start, len);
+				} else if (b.right instanceof Node.Temp) {
+					apply(b.op, evaluated.peek(), temps[((Node.Temp)b.right).slot], 0, len);
+				} else {
+					int[] right = evaluated.pop();
+					apply(b.op, evaluated.peek(), right, 0, len);
+					release(right);
+				}
+			}
+		}
+		return evaluated.pop();
+	}
+
+	private static boolean isLeaf(Node node) {
+		return node instanceof Node.Constant || node instanceof Node.Scalar || node instanceof Node.Temp;
+	}
+
+	/**
+	 * @return Scratch buffer holding the values of a constant, scalar or shared value
+	 */
+	private int[] leaf(Node node, int[][] scalars, int start, int len) {
+		int[] out = acquire();
+		if (node instanceof Node.Constant) {
+			Arrays.fill(out, 0, len, ((Node.Constant)node).value);
+		} else if (node instanceof Node.Scalar) {
+			System.arraycopy(scalars[((Node.Scalar)node).slot], start, out, 0, len);
+		} else {
+			System.arraycopy(temps[((Node.Temp)node).slot], 0, out, 0, len);
+		}
+		return out;
+	}
+
+	/**
+	 * out[i] = out[i] op right[offset+i], one loop per operator
+	 */
+	private static void apply(char op, int[] out, int[] right, int offset, int len) {
+		switch (op) {
+		case '+':
+			for (int i = 0; i < len; i++) {
+				out[i] += right[offset + i];
+			}
+			break;
+		case '-':
+			for (int i = 0; i < len; i++) {
+				out[i] -= right[offset + i];
+			}
+			break;
+		case '*':
+			for (int i = 0; i < len; i++) {
+				out[i] *= right[offset + i];
+			}
+			break;
+		default:
+			for (int i = 0; i < len; i++) {
+				out[i] /= right[offset + i];
+			}
+			break;
+		}
+	}
+
+	/**
+	 * out[i] = out[i] op value, one loop per operator
+	 */
+	private static void applyConstant(char op, int[] out, int value, int len) {
+		switch (op) {
+		case '+':
+			for (int i = 0; i < len; i++) {
+				out[i] += value;
+			}
+			break;
+		case '-':
+			for (int i = 0; i < len; i++) {
+				out[i] -= value;
+			}
+			break;
+		case '*':
+			for (int i = 0; i < len; i++) {
+				out[i] *= value;
+			}
+			break;
+		default:
+			for (int i = 0; i < len; i++) {
+				out[i] /= value;
+			}
+			break;
+		}
+	}
+
+	private int[] temp(int slot) {
+		if (slot >= temps.length) {
+			temps = Arrays.copyOf(temps, slot + 1);
+		}
+		if (temps[slot] == null) {
+			temps[slot] = new int[BLOCK];
+		}
+		return temps[slot];
+	}
+
+	private int[] acquire() {
+		if (free.isEmpty()) {
+			return new int[BLOCK];
+		}
+		return free.remove(free.size() - 1);
+	}
+
+	private void release(int[] buffer) {
+		free.add(buffer);
+	}
+}
@@ -0,0 +1,287 @@
+package apps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a stream of evaluation jobs for Evaluator's batch mode. Each line of input is
+ * one job, an expression and the symbol values file to evaluate it with, separated by
+ * a tab:
+ * <pre>
+ *     a - (b+A[B[2]])*d + 3	etest1.txt
+ *     varx + arrayA[vary]	etest2.txt
+ *     2*(3+4)
+ * </pre>
+ * The file may be left out for an expression without symbols. Blank lines and lines
+ * starting with # are skipped.
+ *
+ * Jobs go through three stages, each on its own thread and connected by bounded
+ * queues, so that one job is parsed while the one before it is loading and the one
+ * before that is evaluated: parsing (through the shared ExpressionCache), loading
+ * symbol values, then evaluation and output. Output is one tab-separated line per
+ * job, in input order, written through a buffer:
+ * <pre>
+ *     1	OK	-106
+ *     2	ERROR	no such file: etest3.txt
+ * </pre>
+ * where the first field is the job's line number. With symbol printing on, each result
+ * is preceded by one SYMBOL line per symbol, such as "1	SYMBOL	a=3".
+ */
+class BatchRunner {
+
+	/**
+	 * Jobs waiting between two stages
+	 */
+	private static final int QUEUE = 256;
+
+	/**
+	 * One line of input on its way through the stages.
+	 */
+	private static class Job {
+
+		final int line;
+		final String expression;
+		final String file;
+		CompiledExpression compiled;
+		Bindings bindings;
+		String error;
+
+		Job(int line, String expression, String file) {
+			this.line = line;
+			this.expression = expression;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Marks the end of input
+	 */
+	private static final Job END = new Job(0, null, null);
+
+	private final BufferedReader in;
+	private final Writer out;
+	private final boolean printSymbols;
+
+	private final BlockingQueue<Job> parsed = new ArrayBlockingQueue<Job>(QUEUE);
+	private final BlockingQueue<Job> loaded = new ArrayBlockingQueue<Job>(QUEUE);
+	private volatile IOException inputFailure;
+
+	private int jobs;
+	private int failed;
+
+	/**
+	 * @param in Job lines
+	 * @param out Destination of the results, flushed but not closed
+	 * @param printSymbols Whether to print the symbol values of each job
+	 */
+	BatchRunner(Reader in, Writer out, boolean printSymbols) {
+		this.in = in instanceof BufferedReader ? (BufferedReader)in : new BufferedReader(in);
+		this.out = out;
+		this.printSymbols = printSymbols;
+	}
+
+	/**
+	 * Runs every job of the input.
+	 *
+	 * @throws IOException If the input cannot be read or the output written; results
+	 * of jobs before the failure have been written
+	 */
+	void run() throws IOException {
+		Thread parser = new Thread(this::parse, "batch-parse");
+		Thread loader = new Thread(this::load, "batch-load");
+		parser.setDaemon(true);
+		loader.setDaemon(true);
+		parser.start();
+		loader.start();
+		try {
+			Job job;
+			while ((job = take(loaded)) != END) {
+				evaluate(job);
+				if (loaded.isEmpty()) { // nothing ready, let a streaming reader see what is done
+					out.flush();
+				}
+			}
+			out.flush();
+		} finally {
+			parser.interrupt();
+			loader.interrupt();
+		}
+		if (inputFailure != null) {
+			throw inputFailure;
+		}
+	}
+
+	/**
+	 * @return Number of jobs run
+	 */
+	int jobs() {
+		return jobs;
+	}
+
+	/**
+	 * @return Number of jobs that failed
+	 */
+	int failed() {
+		return failed;
+	}
+
+	/**
+	 * First stage: reads job lines and parses their expressions. A job that fails to
+	 * parse, however it fails, carries its error on to the output; END is queued
+	 * whatever happens, unless the stage is interrupted, so the stages after this one
+	 * always finish.
+	 */
+	private void parse() {
+		boolean interrupted = false;
+		try {
+			String text;
+			int line = 0;
+			while ((text = in.readLine()) != null) {
+				line++;
+				if (text.trim().length() == 0 || text.startsWith("#")) {
+					continue;
+				}
+				int tab = text.lastIndexOf('\t');
+				Job job = tab < 0 ? new Job(line, text, null) : new Job(line, text.substring(0, tab), text.substring(tab + 1).trim());
+				try {
+					job.compiled = ExpressionCache.shared().get(job.expression);
+				} catch (IllegalArgumentException e) {
+					job.error = e.getMessage();
+				} catch (RuntimeException e) {
+					job.error = describe(e);
+				}
+				parsed.put(job);
+			}
+		} catch (IOException e) {
+			inputFailure = e;
+		} catch (RuntimeException e) { // from the reader
+			inputFailure = new IOException("reading jobs failed", e);
+		} catch (InterruptedException e) {
+			interrupted = true;
+		} finally {
+			if (!interrupted) {
+				end(parsed);
+			}
+		}
+	}
+
+	/**
+	 * Second stage: loads the symbol values of each job. END is queued as by parse.
+	 */
+	private void load() {
+		try {
+			Job job;
+			while ((job = parsed.take()) != END) {
+				if (job.error == null) {
+					try {
+						job.bindings = job.compiled.newBindings();
+						if (job.file != null && job.file.length() > 0) {
+							job.bindings.loadSymbolValues(Paths.get(job.file));
+						}
+					} catch (IOException | RuntimeException e) {
+						job.error = describe(e);
+					}
+				}
+				loaded.put(job);
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+		end(loaded);
+	}
+
+	private static void end(BlockingQueue<Job> queue) {
+		try {
+			queue.put(END);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Last stage: evaluates a job and writes its result.
+	 */
+	private void evaluate(Job job) throws IOException {
+		jobs++;
+		String result = null;
+		if (job.error == null) {
+			try {
+				result = Integer.toString(job.compiled.evaluate(job.bindings));
+			} catch (RuntimeException e) {
+				job.error = describe(e);
+			}
+		}
+		if (printSymbols && job.bindings != null) {
+			CompiledExpression ce = job.compiled;
+			for (int i = 0; i < ce.scalarNames.length; i++) {
+				write(job.line, "SYMBOL", ce.scalarNames[i] + "=" + job.bindings.scalars[i]);
+			}
+			for (int i = 0; i < ce.arrayNames.length; i++) {
+				write(job.line, "SYMBOL", ce.arrayNames[i] + "=" + job.bindings.arrays[i]);
+			}
+		}
+		if (job.error != null) {
+			failed++;
+			write(job.line, "ERROR", job.error);
+		} else {
+			write(job.line, "OK", result);
+		}
+	}
+
+	private void write(int line, String status, String value) throws IOException {
+		out.write(Integer.toString(line));
+		out.write('\t');
+		out.write(status);
+		out.write('\t');
+		out.write(value.replace('\n', ' ').replace('\t', ' '));
+		out.write('\n');
+	}
+
+	private static String describe(Exception e) {
+		if (e instanceof NoSuchFileException) {
+			return "no such file: " + e.getMessage();
+		}
+		return e.getMessage() == null ? e.getClass().getSimpleName() : e.getClass().getSimpleName() + ": " + e.getMessage();
+	}
+
+	private static Job take(BlockingQueue<Job> queue) throws IOException {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}
+	}
+
+	/**
+	 * Runs a job file, or standard input for "-", writing results to standard output.
+	 *
+	 * @param source Job file name, or "-"
+	 * @param printSymbols Whether to print the symbol values of each job
+	 * @throws IOException If the input cannot be read
+	 */
+	static void run(String source, boolean printSymbols) throws IOException {
+		Reader in = source.equals("-") ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+				: Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8);
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+		long start = System.nanoTime();
+		BatchRunner runner = new BatchRunner(in, out, printSymbols);
+		try {
+			runner.run();
+		} finally {
+			in.close();
+		}
+		System.err.println(runner.jobs() + " jobs, " + runner.failed() + " failed, "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
@@ -0,0 +1,230 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import structures.DenseIntArray;
+import structures.IntArray;
+import structures.IntStack;
+import structures.LongStack;
+
+/**
+ * Values for the symbols of one CompiledExpression: a binding context. Values are held
+ * by slot, in exactly the form the evaluation engines read, so evaluating against a
+ * Bindings copies nothing. A Bindings can be refilled and evaluated any number of
+ * times.
+ *
+ * A Bindings is also scratch space for evaluation, and must be used by one thread at a
+ * time; threads sharing a CompiledExpression each get their own. Since all the state an
+ * evaluation needs is here, evaluating against the same Bindings again allocates
+ * nothing, whatever the engine.
+ */
+public final class Bindings {
+
+	/**
+	 * Expression these values are for
+	 */
+	final CompiledExpression compiled;
+
+	/**
+	 * Scalar values by slot, followed by room for shared subexpressions
+	 */
+	final int[] scalars;
+
+	/**
+	 * Array values by slot, null where none are bound
+	 */
+	final IntArray[] arrays;
+
+	private IntStack stack;
+	private LongStack longStack;
+
+	/**
+	 * @param compiled Expression to hold values for
+	 */
+	Bindings(CompiledExpression compiled) {
+		this.compiled = compiled;
+		scalars = new int[compiled.frameSize()];
+		arrays = new IntArray[compiled.arrayNames.length];
+	}
+
+	/**
+	 * @return Expression these values are for
+	 */
+	public CompiledExpression expression() {
+		return compiled;
+	}
+
+	/**
+	 * Sets the value of a scalar.
+	 *
+	 * @param name Variable name
+	 * @param value Value
+	 * @throws IllegalArgumentException If the expression has no such scalar
+	 */
+	public void setScalar(String name, int value) {
+		scalars[scalarSlot(name)] = value;
+	}
+
+	/**
+	 * Sets the value of a scalar by slot, see CompiledExpression.scalarSlot.
+	 *
+	 * @param slot Scalar slot
+	 * @param value Value
+	 * @throws IndexOutOfBoundsException If there is no such slot
+	 */
+	public void setScalar(int slot, int value) {
+		if (slot < 0 || slot >= compiled.scalarNames.length) {
+			throw new IndexOutOfBoundsException("no scalar slot " + slot);
+		}
+		scalars[slot] = value;
+	}
+
+	/**
+	 * @param name Variable name
+	 * @return Value of the scalar
+	 * @throws IllegalArgumentException If the expression has no such scalar
+	 */
+	public int getScalar(String name) {
+		return scalars[scalarSlot(name)];
+	}
+
+	/**
+	 * Binds an array. The values are not copied.
+	 *
+	 * @param name Array name
+	 * @param values Values
+	 * @throws IllegalArgumentException If the expression has no such array
+	 */
+	public void setArray(String name, IntArray values) {
+		arrays[arraySlot(name)] = values;
+	}
+
+	/**
+	 * Binds an array. The values are not copied.
+	 *
+	 * @param name Array name
+	 * @param values Values
+	 * @throws IllegalArgumentException If the expression has no such array
+	 */
+	public void setArray(String name, int[] values) {
+		arrays[arraySlot(name)] = new DenseIntArray(values);
+	}
+
+	/**
+	 * @param name Array name
+	 * @return Values bound to the array, or null if there are none
+	 * @throws IllegalArgumentException If the expression has no such array
+	 */
+	public IntArray getArray(String name) {
+		return arrays[arraySlot(name)];
+	}
+
+	/**
+	 * Loads values from a symbol values file, in the format of
+	 * Expression.loadSymbolValues(Scanner). Symbols not in the file keep their values.
+	 *
+	 * @param file Symbol values file
+	 * @throws IOException If the file cannot be read or is malformed
+	 */
+	public void loadSymbolValues(Path file) throws IOException {
+		SymbolTable symbols = compiled.newSymbols();
+		for (int i = 0; i < compiled.scalarNames.length; i++) {
+			symbols.scalars.get(i).value = scalars[i];
+		}
+		for (int i = 0; i < arrays.length; i++) {
+			symbols.arrays.get(i).setStorage(arrays[i]);
+		}
+		SymbolFileReader.load(file, symbols);
+		bind(symbols);
+	}
+
+	/**
+	 * Gives the expression's symbols the values they have in a store. Scalars are
+	 * copied and arrays bound by reference; symbols the store lacks keep their values.
+	 *
+	 * @param store Loaded symbol values
+	 * @return Number of symbols bound
+	 */
+	public int bindSymbolValues(SymbolStore store) {
+		return store.bind(this);
+	}
+
+	/**
+	 * Copies the values of a symbol table laid out like the expression. Arrays are
+	 * bound, not copied.
+	 *
+	 * @param symbols Symbol table with the expression's slots
+	 */
+	void bind(SymbolTable symbols) {
+		for (int i = 0; i < compiled.scalarNames.length; i++) {
+			scalars[i] = symbols.scalars.get(i).value;
+		}
+		for (int i = 0; i < arrays.length; i++) {
+			arrays[i] = symbols.arrays.get(i).storage();
+		}
+	}
+
+	/**
+	 * Copies the values of the symbols of any table that have the names of the
+	 * expression's symbols. Arrays are bound, not copied; symbols the table lacks keep
+	 * their values.
+	 *
+	 * @param symbols Symbol table to take values from, which is only read
+	 * @return Number of symbols bound
+	 */
+	int bindByName(SymbolTable symbols) {
+		int bound = 0;
+		for (int i = 0; i < compiled.scalarNames.length; i++) {
+			ScalarSymbol ss = symbols.scalar(compiled.scalarNames[i]);
+			if (ss != null) {
+				scalars[i] = ss.value;
+				bound++;
+			}
+		}
+		for (int i = 0; i < arrays.length; i++) {
+			ArraySymbol as = symbols.array(compiled.arrayNames[i]);
+			if (as != null) {
+				arrays[i] = as.storage();
+				bound++;
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * @return Operand stack for running the postfix form of the expression
+	 */
+	IntStack stack() {
+		if (stack == null) {
+			stack = new IntStack(compiled.machine().maxDepth);
+		}
+		return stack;
+	}
+
+	/**
+	 * @return Operand stack for the checked, long and double runs of the postfix form
+	 */
+	LongStack longStack() {
+		if (longStack == null) {
+			longStack = new LongStack(compiled.typedMachine().maxDepth);
+		}
+		return longStack;
+	}
+
+	private int scalarSlot(String name) {
+		int slot = compiled.scalarSlot(name);
+		if (slot < 0) {
+			throw new IllegalArgumentException("no scalar " + name + " in \"" + compiled.text + "\"");
+		}
+		return slot;
+	}
+
+	private int arraySlot(String name) {
+		int slot = compiled.arraySlot(name);
+		if (slot < 0) {
+			throw new IllegalArgumentException("no array " + name + " in \"" + compiled.text + "\"");
+		}
+		return slot;
+	}
+}
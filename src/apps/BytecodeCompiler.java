@@ -0,0 +1,439 @@
+package apps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiles a parsed expression to JVM bytecode. The tree is translated into the body
+ * of a single ExpressionFunction.eval method on a hidden class, so that HotSpot sees
+ * the expression as straight-line code on int values and array loads, and can inline
+ * and optimize it like a hand written method.
+ *
+ * The generated method has no branches, so the class file needs no stack map frames.
+ * Shared subexpressions are kept in local variables rather than in the scalars array.
+ *
+ * Besides int, the tree can be compiled for long or double arithmetic, to an
+ * ExpressionFunction.OfLong or OfDouble, and int or long arithmetic can be checked,
+ * with the Math.*Exact methods. The instructions are the same with their operand type
+ * changed; see Node for what each kind of evaluation means.
+ */
+class BytecodeCompiler {
+
+	/**
+	 * Largest method body the JVM accepts
+	 */
+	private static final int MAX_CODE = 65535;
+
+	private static final String CLASS_NAME = "apps/ExpressionFunction$Compiled";
+	private static final String EVAL_PARAMETERS = "([I[Lstructures/IntArray;)";
+
+	// opcodes used by the generated code
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ALOAD_2 = 0x2c;
+	private static final int ILOAD = 0x15;
+	private static final int IALOAD = 0x2e;
+	private static final int ISTORE = 0x36;
+	private static final int DUP = 0x59;
+	private static final int DUP2 = 0x5c;
+	private static final int AALOAD = 0x32;
+	private static final int IADD = 0x60;
+	private static final int ISUB = 0x64;
+	private static final int IMUL = 0x68;
+	private static final int IDIV = 0x6c;
+	private static final int I2L = 0x85;
+	private static final int I2D = 0x87;
+	private static final int INEG = 0x74;
+	private static final int IRETURN = 0xac;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int WIDE = 0xc4;
+
+	/**
+	 * Locals of eval before the shared values: this, scalars, arrays
+	 */
+	private static final int FIRST_LOCAL = 3;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final HashMap<Object, Integer> poolIndex = new HashMap<Object, Integer>();
+	private int poolCount = 1;
+
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+	/**
+	 * Type of the values computed: 'I', 'J' or 'D' as in descriptors
+	 */
+	private final char type;
+
+	/**
+	 * Whether int and long operations throw on overflow
+	 */
+	private final boolean exact;
+
+	/**
+	 * Local variable holding each shared value, by the scalar slot of its Let
+	 */
+	private final Map<Integer, Integer> locals = new HashMap<Integer, Integer>();
+	private int nextLocal = FIRST_LOCAL;
+
+	/**
+	 * Constant pool index of IntArray.get(long)
+	 */
+	private int arrayGet;
+
+	/**
+	 * Constant pool indexes of the static methods called, by name and descriptor
+	 */
+	private final Map<String, Integer> statics = new HashMap<String, Integer>();
+
+	private BytecodeCompiler(char type, boolean exact) {
+		this.type = type;
+		this.exact = exact;
+	}
+
+	/**
+	 * Compiles a tree and loads it as a hidden class.
+	 *
+	 * @param tree Root of the parsed expression
+	 * @return Function that evaluates the expression
+	 * @throws IllegalStateException If the expression is too large for a single method
+	 * or nested more than Node.RECURSION_LIMIT deep, or the class could not be defined
+	 */
+	static ExpressionFunction compile(Node tree) {
+		return (ExpressionFunction)define(tree, 'I', false);
+	}
+
+	/**
+	 * Compiles a tree as parsed for int arithmetic that throws ArithmeticException on
+	 * overflow.
+	 *
+	 * @param tree Root of the parsed expression
+	 * @return Function that evaluates the expression
+	 * @throws IllegalStateException As for compile
+	 */
+	static ExpressionFunction compileExact(Node tree) {
+		return (ExpressionFunction)define(tree, 'I', true);
+	}
+
+	/**
+	 * Compiles a tree as parsed for long arithmetic.
+	 *
+	 * @param tree Root of the parsed expression
+	 * @param exact Whether to throw ArithmeticException on overflow
+	 * @return Function that evaluates the expression
+	 * @throws IllegalStateException As for compile
+	 */
+	static ExpressionFunction.OfLong compileLong(Node tree, boolean exact) {
+		return (ExpressionFunction.OfLong)define(tree, 'J', exact);
+	}
+
+	/**
+	 * Compiles a tree as parsed for double arithmetic.
+	 *
+	 * @param tree Root of the parsed expression
+	 * @return Function that evaluates the expression
+	 * @throws IllegalStateException As for compile
+	 */
+	static ExpressionFunction.OfDouble compileDouble(Node tree) {
+		return (ExpressionFunction.OfDouble)define(tree, 'D', false);
+	}
+
+	private static Object define(Node tree, char type, boolean exact) {
+		if (Node.depth(tree) > Node.RECURSION_LIMIT) { // emit and maxStack recurse
+			throw new IllegalStateException("expression too deeply nested to compile");
+		}
+		byte[] bytes;
+		try {
+			bytes = new BytecodeCompiler(type, exact).classFile(tree);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			return lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable e) {
+			throw new IllegalStateException("could not define compiled expression", e);
+		}
+	}
+
+	private byte[] classFile(Node tree) throws IOException {
+		int thisClass = classRef(CLASS_NAME);
+		int superClass = classRef("java/lang/Object");
+		int iface = classRef(type == 'I' ? "apps/ExpressionFunction"
+				: type == 'J' ? "apps/ExpressionFunction$OfLong" : "apps/ExpressionFunction$OfDouble");
+		int codeName = utf8("Code");
+		int initName = utf8("<init>");
+		int initDescriptor = utf8("()V");
+		int evalName = utf8("eval");
+		int evalDescriptor = utf8(EVAL_PARAMETERS + type);
+		int superInit = methodRef(superClass, initName, initDescriptor);
+		arrayGet = methodRef(classRef("structures/IntArray"), utf8("get"), utf8("(J)I"));
+
+		emit(tree, type);
+		code.write(typed(IRETURN, type));
+		if (code.size() > MAX_CODE) {
+			throw new IllegalStateException("expression too large to compile: " + code.size() + " bytes of code");
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(52);
+		out.writeShort(poolCount);
+		pool.writeTo(out);
+		out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(iface);
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+
+		// public <init>() { super(); }
+		out.writeShort(0x0001);
+		out.writeShort(initName);
+		out.writeShort(initDescriptor);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + 5);
+		out.writeShort(1); // max stack
+		out.writeShort(1); // max locals
+		out.writeInt(5);
+		out.writeByte(ALOAD_0);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(superInit);
+		out.writeByte(RETURN);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+
+		// public int (or long, or double) eval(int[] scalars, IntArray[] arrays)
+		out.writeShort(0x0001);
+		out.writeShort(evalName);
+		out.writeShort(evalDescriptor);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.size());
+		out.writeShort(maxStack(tree, type));
+		out.writeShort(nextLocal);
+		out.writeInt(code.size());
+		code.writeTo(out);
+		out.writeShort(0);
+		out.writeShort(0);
+
+		out.writeShort(0); // class attributes
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Emits code that leaves the value of a subtree on the operand stack.
+	 *
+	 * @param node Root of the subtree
+	 * @param type Type of the value: 'I', 'J' or 'D'
+	 */
+	private void emit(Node node, char type) throws IOException {
+		if (node instanceof Node.Constant) {
+			pushInt(((Node.Constant)node).value);
+			widen(type);
+		} else if (node instanceof Node.Scalar) {
+			code.write(ALOAD_1);
+			pushInt(((Node.Scalar)node).slot);
+			code.write(IALOAD);
+			widen(type);
+		} else if (node instanceof Node.Subscript) {
+			Node.Subscript s = (Node.Subscript)node;
+			code.write(ALOAD_2);
+			pushInt(s.slot);
+			code.write(AALOAD);
+			if (type == 'I') {
+				emit(s.index, 'I');
+				code.write(I2L);
+			} else { // subscripts of double expressions are computed as longs
+				emit(s.index, 'J');
+			}
+			code.write(INVOKEVIRTUAL);
+			code.write(arrayGet >> 8);
+			code.write(arrayGet);
+			widen(type);
+		} else if (node instanceof Node.Negate) {
+			emit(((Node.Negate)node).operand, type);
+			if (exact && type != 'D') {
+				invokeStatic("java/lang/Math", "negateExact", "(" + type + ")" + type);
+			} else {
+				code.write(typed(INEG, type));
+			}
+		} else if (node instanceof Node.Let) {
+			Node.Let let = (Node.Let)node;
+			int local = nextLocal;
+			nextLocal += width(type);
+			locals.put(let.slot, local);
+			emit(let.value, type);
+			code.write(width(type) == 1 ? DUP : DUP2);
+			local(typed(ISTORE, type), local);
+		} else if (node instanceof Node.Temp) {
+			local(typed(ILOAD, type), locals.get(((Node.Temp)node).slot));
+		} else {
+			Node.Binary b = (Node.Binary)node;
+			emit(b.left, type);
+			emit(b.right, type);
+			if (exact && type != 'D') {
+				String descriptor = "(" + type + type + ")" + type;
+				switch (b.op) {
+				case '+': invokeStatic("java/lang/Math", "addExact", descriptor); break;
+				case '-': invokeStatic("java/lang/Math", "subtractExact", descriptor); break;
+				case '*': invokeStatic("java/lang/Math", "multiplyExact", descriptor); break;
+				default: invokeStatic("apps/Node", "divideExact", descriptor); break;
+				}
+				return;
+			}
+			switch (b.op) {
+			case '+': code.write(typed(IADD, type)); break;
+			case '-': code.write(typed(ISUB, type)); break;
+			case '*': code.write(typed(IMUL, type)); break;
+			default: code.write(typed(IDIV, type)); break;
+			}
+		}
+	}
+
+	/**
+	 * Operand stack depth needed to evaluate a subtree, in slots; longs and doubles
+	 * take two.
+	 */
+	private static int maxStack(Node node, char type) {
+		int width = width(type);
+		if (node instanceof Node.Subscript) {
+			Node index = ((Node.Subscript)node).index;
+			return 1 + Math.max(2, maxStack(index, type == 'I' ? 'I' : 'J'));
+		} else if (node instanceof Node.Scalar) {
+			return 2;
+		} else if (node instanceof Node.Negate) {
+			return maxStack(((Node.Negate)node).operand, type);
+		} else if (node instanceof Node.Let) {
+			return Math.max(2 * width, maxStack(((Node.Let)node).value, type));
+		} else if (node instanceof Node.Binary) {
+			Node.Binary b = (Node.Binary)node;
+			return Math.max(maxStack(b.left, type), width + maxStack(b.right, type));
+		}
+		return width;
+	}
+
+	/**
+	 * Converts the int on top of the stack to the type of the expression.
+	 */
+	private void widen(char type) {
+		if (type == 'J') {
+			code.write(I2L);
+		} else if (type == 'D') {
+			code.write(I2D);
+		}
+	}
+
+	/**
+	 * The long or double form of an int instruction, which the JVM numbers 1 and 3
+	 * after it
+	 */
+	private static int typed(int intOpcode, char type) {
+		return intOpcode + (type == 'I' ? 0 : type == 'J' ? 1 : 3);
+	}
+
+	/**
+	 * @return Stack and local variable slots taken by a value of the type
+	 */
+	private static int width(char type) {
+		return type == 'I' ? 1 : 2;
+	}
+
+	private void invokeStatic(String owner, String name, String descriptor) throws IOException {
+		String key = owner + "." + name + descriptor;
+		Integer index = statics.get(key);
+		if (index == null) {
+			index = methodRef(classRef(owner), utf8(name), utf8(descriptor));
+			statics.put(key, index);
+		}
+		code.write(INVOKESTATIC);
+		code.write(index >> 8);
+		code.write(index);
+	}
+
+	private void local(int opcode, int index) {
+		if (index > 0xff) {
+			code.write(WIDE);
+			code.write(opcode);
+			code.write(index >> 8);
+		} else {
+			code.write(opcode);
+		}
+		code.write(index);
+	}
+
+	private void pushInt(int value) throws IOException {
+		if (value >= -1 && value <= 5) {
+			code.write(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			code.write(SIPUSH);
+			code.write(value >> 8);
+			code.write(value);
+		} else {
+			int index = intConstant(value);
+			code.write(LDC_W);
+			code.write(index >> 8);
+			code.write(index);
+		}
+	}
+
+	private int utf8(String s) throws IOException {
+		Integer index = poolIndex.get(s);
+		if (index == null) {
+			poolOut.writeByte(1);
+			poolOut.writeUTF(s);
+			index = poolCount++;
+			poolIndex.put(s, index);
+		}
+		return index;
+	}
+
+	private int intConstant(int value) throws IOException {
+		Integer index = poolIndex.get(value);
+		if (index == null) {
+			poolOut.writeByte(3);
+			poolOut.writeInt(value);
+			index = poolCount++;
+			poolIndex.put(value, index);
+		}
+		return index;
+	}
+
+	private int classRef(String name) throws IOException {
+		int nameIndex = utf8(name);
+		poolOut.writeByte(7);
+		poolOut.writeShort(nameIndex);
+		return poolCount++;
+	}
+
+	private int methodRef(int owner, int name, int descriptor) throws IOException {
+		poolOut.writeByte(12);
+		poolOut.writeShort(name);
+		poolOut.writeShort(descriptor);
+		int nameAndType = poolCount++;
+		poolOut.writeByte(10);
+		poolOut.writeShort(owner);
+		poolOut.writeShort(nameAndType);
+		return poolCount++;
+	}
+}
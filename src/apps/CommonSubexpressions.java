@@ -0,0 +1,204 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import structures.ByteStack;
+import structures.Stack;
+
+/**
+ * Finds subtrees that occur more than once in a tree, such as the repeated A[b+a] in
+ * A[b+a]*A[b+a]+A[b+a], and rewrites the tree so that each is evaluated once: the
+ * first occurrence in evaluation order becomes a Let that keeps its value in a spare
+ * scalar slot, and every later occurrence becomes a Temp that reads it back.
+ *
+ * Several trees can be rewritten together, in which case they are taken to be evaluated
+ * in order on the same scalar values, and a subexpression of one tree is shared with
+ * every tree after it.
+ *
+ * Only operators and subscripts are shared; constants and scalars are already as
+ * cheap as a Temp. Since the first occurrence is still evaluated where it was, an
+ * exception it throws, such as a subscript out of bounds, is thrown at the same point
+ * as before.
+ *
+ * Trees are walked with explicit stacks, so their depth is not limited by recursion.
+ */
+class CommonSubexpressions {
+
+	/**
+	 * Rewritten tree, the first of trees
+	 */
+	final Node tree;
+
+	/**
+	 * Rewritten trees, in the order given
+	 */
+	final Node[] trees;
+
+	/**
+	 * Number of scalar slots used for shared values
+	 */
+	final int temps;
+
+	/**
+	 * Number of nodes of the original tree that are no longer evaluated
+	 */
+	final int deduplicated;
+
+	// structural key of each distinct subtree -> its id; children are keyed by id
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final IdentityHashMap<Node, Integer> idOf = new IdentityHashMap<Node, Integer>();
+
+	// by id: number of distinct parents using the subtree, and the slot holding its value
+	private final ArrayList<Integer> uses = new ArrayList<Integer>();
+	private final ArrayList<Integer> slots = new ArrayList<Integer>();
+
+	private int nextSlot;
+	private int saved;
+
+	/**
+	 * Shares the common subexpressions of a tree.
+	 *
+	 * @param tree Root of the tree, which is not changed
+	 * @param base First free scalar slot, i.e. the number of scalars of the expression
+	 */
+	CommonSubexpressions(Node tree, int base) {
+		this(new Node[] {tree}, base);
+	}
+
+	/**
+	 * Shares the common subexpressions of trees evaluated one after the other.
+	 *
+	 * @param roots Roots of the trees, which are not changed
+	 * @param base First free scalar slot, i.e. the number of scalars of the expressions
+	 */
+	CommonSubexpressions(Node[] roots, int base) {
+		nextSlot = base;
+		for (Node root : roots) {
+			for (Node node : Node.postorder(root)) {
+				intern(node);
+			}
+			int id = idOf.get(root);
+			uses.set(id, uses.get(id) + 1); // a root is used by its caller
+		}
+		trees = new Node[roots.length];
+		for (int i = 0; i < roots.length; i++) {
+			trees[i] = rewrite(roots[i]);
+		}
+		tree = trees[0];
+		temps = nextSlot - base;
+		deduplicated = saved;
+	}
+
+	/**
+	 * Gives a subtree the id of the first structurally equal subtree seen. Its children
+	 * must have ids already.
+	 */
+	private void intern(Node node) {
+		String key;
+		int[] children;
+		if (node instanceof Node.Constant) {
+			key = "c" + ((Node.Constant)node).value;
+			children = new int[0];
+		} else if (node instanceof Node.Scalar) {
+			key = "s" + ((Node.Scalar)node).slot;
+			children = new int[0];
+		} else if (node instanceof Node.Subscript) {
+			Node.Subscript s = (Node.Subscript)node;
+			children = new int[] {idOf.get(s.index)};
+			key = "a" + s.slot + "[" + children[0];
+		} else if (node instanceof Node.Negate) {
+			children = new int[] {idOf.get(((Node.Negate)node).operand)};
+			key = "-" + children[0];
+		} else {
+			Node.Binary b = (Node.Binary)node;
+			children = new int[] {idOf.get(b.left), idOf.get(b.right)};
+			key = b.op + "" + children[0] + "," + children[1];
+		}
+		Integer id = ids.get(key);
+		if (id == null) {
+			id = uses.size();
+			ids.put(key, id);
+			uses.add(0);
+			slots.add(-1);
+			for (int child : children) {
+				uses.set(child, uses.get(child) + 1);
+			}
+		}
+		idOf.put(node, id);
+	}
+
+	/**
+	 * Rewrites a tree in evaluation order, so that the first occurrence of a shared
+	 * subtree is the one that keeps its value. Nodes whose children are being rewritten
+	 * wait on the work stack, marked as visited, and their rewritten children collect on
+	 * the results stack.
+	 */
+	private Node rewrite(Node root) {
+		Stack<Node> work = new Stack<Node>();
+		ByteStack visited = new ByteStack();
+		Stack<Node> results = new Stack<Node>();
+		work.push(root);
+		visited.push((byte)0);
+		while (!work.isEmpty()) {
+			Node node = work.pop();
+			if (visited.pop() != 0) {
+				Node value = rewriteChildren(node, results);
+				int id = idOf.get(node);
+				if (uses.get(id) >= 2) {
+					int slot = nextSlot++;
+					slots.set(id, slot);
+					value = new Node.Let(slot, value);
+				}
+				results.push(value);
+				continue;
+			}
+			if (node instanceof Node.Constant || node instanceof Node.Scalar) {
+				results.push(node);
+				continue;
+			}
+			int id = idOf.get(node);
+			int slot = slots.get(id);
+			if (slot >= 0) { // computed earlier in evaluation order
+				saved += Optimizer.size(node);
+				results.push(new Node.Temp(slot));
+				continue;
+			}
+			work.push(node);
+			visited.push((byte)1);
+			if (node instanceof Node.Subscript) {
+				work.push(((Node.Subscript)node).index);
+				visited.push((byte)0);
+			} else if (node instanceof Node.Negate) {
+				work.push(((Node.Negate)node).operand);
+				visited.push((byte)0);
+			} else {
+				work.push(((Node.Binary)node).right); // popped after the left is done
+				visited.push((byte)0);
+				work.push(((Node.Binary)node).left);
+				visited.push((byte)0);
+			}
+		}
+		return results.pop();
+	}
+
+	/**
+	 * Rebuilds a node over its rewritten children, taken off the results stack.
+	 */
+	private static Node rewriteChildren(Node node, Stack<Node> results) {
+		if (node instanceof Node.Subscript) {
+			Node.Subscript s = (Node.Subscript)node;
+			Node index = results.pop();
+			return index == s.index ? node : new Node.Subscript(s.name, s.slot, index);
+		}
+		if (node instanceof Node.Negate) {
+			Node operand = results.pop();
+			return operand == ((Node.Negate)node).operand ? node : new Node.Negate(operand);
+		}
+		Node.Binary b = (Node.Binary)node;
+		Node right = results.pop();
+		Node left = results.pop();
+		return left == b.left && right == b.right ? node : new Node.Binary(b.op, left, right);
+	}
+}
@@ -0,0 +1,537 @@
+package apps;
+
+import java.util.HashMap;
+
+import structures.LongStack;
+
+/**
+ * The parsed form of an expression together with its symbol layout: the names of its
+ * scalars and arrays in slot order. A CompiledExpression holds no symbol values and
+ * never changes once built, so one instance can back any number of Expressions, on
+ * any number of threads.
+ *
+ * Values are supplied through Bindings, one per thread or per request. Evaluating the
+ * same CompiledExpression concurrently with different Bindings needs no locking:
+ *
+ * <pre>
+ *     CompiledExpression ce = CompiledExpression.parse("a*A[b]+c");  // once, shared
+ *     Bindings values = ce.newBindings();                             // per thread, reusable
+ *     values.setScalar("a", 3);
+ *     values.setArray("A", new int[] {1, 2, 3});
+ *     int result = ce.evaluate(values);
+ * </pre>
+ *
+ * The bytecode and postfix forms are derived the first time they are asked for.
+ *
+ * Besides evaluate, with wrapping int arithmetic, there are evaluations with long and
+ * double arithmetic and with int and long arithmetic that throws ArithmeticException
+ * instead of overflowing. Each is compiled to its own bytecode, from the tree as
+ * parsed: the simplifications of the int tree assume wrapping int arithmetic.
+ *
+ * A tree nested more than Node.RECURSION_LIMIT deep is neither compiled to bytecode nor
+ * interpreted by recursion: every evaluation of it runs on a StackMachine, whose stack
+ * is on the heap, so nesting is limited by memory and not by the thread stack size.
+ */
+public final class CompiledExpression {
+
+	/**
+	 * Expression text the tree was parsed from
+	 */
+	final String text;
+
+	/**
+	 * Root of the tree as parsed
+	 */
+	final Node parsed;
+
+	/**
+	 * Root of the simplified tree
+	 */
+	final Node optimized;
+
+	/**
+	 * Root of the simplified tree with its common subexpressions shared, the one that
+	 * is evaluated and compiled
+	 */
+	final Node tree;
+
+	/**
+	 * Scalar slots past the expression's own scalars that hold shared values
+	 */
+	final int temps;
+
+	/**
+	 * Nodes no longer evaluated because their subexpression is shared
+	 */
+	final int deduplicated;
+
+	/**
+	 * Scalar names, indexed by slot
+	 */
+	final String[] scalarNames;
+
+	/**
+	 * Array names, indexed by slot
+	 */
+	final String[] arrayNames;
+
+	/**
+	 * Whether the tree is nested too deep to evaluate by recursion, so that it is
+	 * always run on a StackMachine
+	 */
+	final boolean deep;
+
+	private final HashMap<String, Integer> scalarSlots = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> arraySlots = new HashMap<String, Integer>();
+
+	// derived on first use; a race only means deriving twice
+	private volatile ExpressionFunction function;
+	private volatile StackMachine machine;
+	private volatile StackMachine typedMachine;
+	private volatile Node typedTree;
+	private volatile ExpressionFunction exactFunction;
+	private volatile ExpressionFunction.OfLong longFunction;
+	private volatile ExpressionFunction.OfLong longExactFunction;
+	private volatile ExpressionFunction.OfDouble doubleFunction;
+
+	/**
+	 * Captures the layout of a symbol table and the tree parsed against it, and
+	 * simplifies the tree and shares its common subexpressions.
+	 *
+	 * @param text Expression text
+	 * @param parsed Root of the parsed tree
+	 * @param symbols Symbol table the tree was parsed against
+	 */
+	CompiledExpression(String text, Node parsed, SymbolTable symbols) {
+		this.text = text;
+		this.parsed = parsed;
+		scalarNames = new String[symbols.scalars.size()];
+		for (int i = 0; i < scalarNames.length; i++) {
+			scalarNames[i] = symbols.scalars.get(i).name;
+			scalarSlots.put(scalarNames[i], i);
+		}
+		arrayNames = new String[symbols.arrays.size()];
+		for (int i = 0; i < arrayNames.length; i++) {
+			arrayNames[i] = symbols.arrays.get(i).name;
+			arraySlots.put(arrayNames[i], i);
+		}
+		optimized = Optimizer.optimize(parsed);
+		CommonSubexpressions cse = new CommonSubexpressions(optimized, scalarNames.length);
+		tree = cse.tree;
+		temps = cse.temps;
+		deduplicated = cse.deduplicated;
+		deep = Math.max(Node.depth(parsed), Node.depth(tree)) > Node.RECURSION_LIMIT;
+	}
+
+	/**
+	 * Parses an expression.
+	 *
+	 * @param text Expression text
+	 * @return Compiled expression
+	 * @throws IllegalArgumentException If the expression is malformed
+	 */
+	public static CompiledExpression parse(String text) {
+		long start = Metrics.start();
+		SymbolTable symbols = new SymbolTable();
+		Node tree = Parser.parse(text, symbols);
+		CompiledExpression compiled = new CompiledExpression(text, tree, symbols);
+		Metrics.parsed(start, text);
+		return compiled;
+	}
+
+	/**
+	 * @return Expression text
+	 */
+	public String text() {
+		return text;
+	}
+
+	/**
+	 * @param name Variable name
+	 * @return Slot of the scalar, or -1 if the expression has no such scalar
+	 */
+	public int scalarSlot(String name) {
+		Integer slot = scalarSlots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * @param name Array name
+	 * @return Slot of the array, or -1 if the expression has no such array
+	 */
+	public int arraySlot(String name) {
+		Integer slot = arraySlots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * @return Number of scalar variables
+	 */
+	public int scalarCount() {
+		return scalarNames.length;
+	}
+
+	/**
+	 * @return Number of array variables
+	 */
+	public int arrayCount() {
+		return arrayNames.length;
+	}
+
+	/**
+	 * Creates a binding context for this expression, with every scalar zero and no
+	 * array values.
+	 *
+	 * @return New bindings
+	 */
+	public Bindings newBindings() {
+		return new Bindings(this);
+	}
+
+	/**
+	 * Evaluates the expression against a binding context, with the compiled form of
+	 * the tree. Any number of threads can evaluate at once, each with its own Bindings.
+	 * The first evaluation compiles the tree; after that, evaluating allocates nothing
+	 * on the heap unless it throws or a recording has apps.Evaluate events enabled.
+	 *
+	 * @param bindings Values of the symbols
+	 * @return Value of the expression
+	 * @throws IllegalArgumentException If the bindings were created for another
+	 * expression
+	 */
+	public int evaluate(Bindings bindings) {
+		check(bindings);
+		long start = Metrics.startEvaluation();
+		int value = eval(bindings);
+		Metrics.evaluated(start, text);
+		return value;
+	}
+
+	/**
+	 * Evaluates the expression against a binding context with int arithmetic, as
+	 * evaluate does.
+	 *
+	 * @param bindings Values of the symbols
+	 * @return Value of the expression
+	 * @throws IllegalArgumentException If the bindings were created for another
+	 * expression
+	 */
+	public int evaluateInt(Bindings bindings) {
+		return evaluate(bindings);
+	}
+
+	/**
+	 * Evaluates the expression against a binding context with int arithmetic, throwing
+	 * instead of overflowing.
+	 *
+	 * @param bindings Values of the symbols
+	 * @return Value of the expression
+	 * @throws ArithmeticException If an operation overflows or divides by zero
+	 * @throws IllegalArgumentException If the bindings were created for another
+	 * expression
+	 */
+	public int evaluateIntExact(Bindings bindings) {
+		check(bindings);
+		long start = Metrics.startEvaluation();
+		int value = evalExact(bindings);
+		Metrics.evaluated(start, text);
+		return value;
+	}
+
+	/**
+	 * Evaluates the expression against a binding context with long arithmetic. Symbol
+	 * values are ints, widened as they are read.
+	 *
+	 * @param bindings Values of the symbols
+	 * @return Value of the expression
+	 * @throws IllegalArgumentException If the bindings were created for another
+	 * expression
+	 */
+	public long evaluateLong(Bindings bindings) {
+		check(bindings);
+		long start = Metrics.startEvaluation();
+		long value = evalLong(bindings, false);
+		Metrics.evaluated(start, text);
+		return value;
+	}
+
+	/**
+	 * Evaluates the expression against a binding context with long arithmetic,
+	 * throwing instead of overflowing.
+	 *
+	 * @param bindings Values of the symbols
+	 * @return Value of the expression
+	 * @throws ArithmeticException If an operation overflows or divides by zero
+	 * @throws IllegalArgumentException If the bindings were created for another
+	 * expression
+	 */
+	public long evaluateLongExact(Bindings bindings) {
+		check(bindings);
+		long start = Metrics.startEvaluation();
+		long value = evalLong(bindings, true);
+		Metrics.evaluated(start, text);
+		return value;
+	}
+
+	/**
+	 * Evaluates the expression against a binding context with double arithmetic, so
+	 * division does not truncate. Subscripts are still integers, computed with long
+	 * arithmetic.
+	 *
+	 * @param bindings Values of the symbols
+	 * @return Value of the expression
+	 * @throws IllegalArgumentException If the bindings were created for another
+	 * expression
+	 */
+	public double evaluateDouble(Bindings bindings) {
+		check(bindings);
+		long start = Metrics.startEvaluation();
+		double value = evalDouble(bindings);
+		Metrics.evaluated(start, text);
+		return value;
+	}
+
+	/**
+	 * Evaluates against a binding context with the compiled form of the tree, or on its
+	 * stack machine if the tree is too deep to compile.
+	 */
+	int eval(Bindings bindings) {
+		if (deep) {
+			return machine().run(bindings.scalars, bindings.arrays, bindings.stack());
+		}
+		return function().eval(bindings.scalars, bindings.arrays);
+	}
+
+	/**
+	 * Evaluates with checked int arithmetic, as eval does.
+	 */
+	int evalExact(Bindings bindings) {
+		if (deep) {
+			return typedMachine().runExact(bindings.scalars, bindings.arrays, bindings.longStack());
+		}
+		return exactFunction().eval(bindings.scalars, bindings.arrays);
+	}
+
+	/**
+	 * Evaluates with long arithmetic, checked or not, as eval does.
+	 */
+	long evalLong(Bindings bindings, boolean exact) {
+		if (deep) {
+			return typedMachine().runLong(bindings.scalars, bindings.arrays, bindings.longStack(), exact);
+		}
+		return (exact ? longExactFunction() : longFunction()).eval(bindings.scalars, bindings.arrays);
+	}
+
+	/**
+	 * Evaluates with double arithmetic, as eval does.
+	 */
+	double evalDouble(Bindings bindings) {
+		if (deep) {
+			return typedMachine().runDouble(bindings.scalars, bindings.arrays, bindings.longStack());
+		}
+		return doubleFunction().eval(bindings.scalars, bindings.arrays);
+	}
+
+	private void check(Bindings bindings) {
+		if (bindings.compiled != this) {
+			throw new IllegalArgumentException("bindings belong to \"" + bindings.compiled.text + "\", not \"" + text + "\"");
+		}
+	}
+
+	/**
+	 * @return Number of nodes that are no longer evaluated because an identical
+	 * subexpression is computed once and reused
+	 */
+	public int deduplicated() {
+		return deduplicated;
+	}
+
+	/**
+	 * Number of entries the scalar values passed to tree, function() or machine() must
+	 * have: one per scalar slot, then one per shared subexpression. The entries past
+	 * the scalars are overwritten during evaluation.
+	 *
+	 * @return Length of the scalar values array
+	 */
+	int frameSize() {
+		return scalarNames.length + temps;
+	}
+
+	/**
+	 * Describes the tree as parsed, as simplified and with its common subexpressions
+	 * shared, with their node counts, one per line. A shared value is shown as $n,
+	 * and ($n=...) where it is first computed.
+	 *
+	 * @return Before and after forms
+	 */
+	public String dump() {
+		return "parsed    (" + Optimizer.size(parsed) + " nodes): " + parsed + "\n"
+				+ "optimized (" + Optimizer.size(optimized) + " nodes): " + optimized + "\n"
+				+ "shared    (" + temps + " shared, " + deduplicated + " nodes deduplicated): " + tree;
+	}
+
+	/**
+	 * Creates a symbol table with a fresh symbol, all values zero, in every slot of
+	 * this expression.
+	 *
+	 * @return New symbol table
+	 */
+	SymbolTable newSymbols() {
+		SymbolTable symbols = new SymbolTable();
+		for (String name : scalarNames) {
+			symbols.addScalar(name);
+		}
+		for (String name : arrayNames) {
+			symbols.addArray(name);
+		}
+		return symbols;
+	}
+
+	/**
+	 * @return Bytecode form of the tree, the interpreter if it is too large to compile,
+	 * or the stack machine if it is too deep
+	 */
+	ExpressionFunction function() {
+		ExpressionFunction f = function;
+		if (f == null) {
+			if (deep) {
+				f = machine();
+			} else {
+				try {
+					f = BytecodeCompiler.compile(tree);
+				} catch (IllegalStateException e) { // too large for one method, keep interpreting
+					f = tree::eval;
+				}
+			}
+			function = f;
+		}
+		return f;
+	}
+
+	/**
+	 * @return Tree as parsed with its common subexpressions shared, which the checked
+	 * and long functions are compiled from. The double function is compiled from the
+	 * tree as parsed, since a subexpression inside a subscript has an integer value
+	 * there and may not have it elsewhere.
+	 */
+	private Node typedTree() {
+		Node t = typedTree;
+		if (t == null) {
+			t = new CommonSubexpressions(parsed, scalarNames.length).tree;
+			typedTree = t;
+		}
+		return t;
+	}
+
+	/**
+	 * @return Bytecode form with checked int arithmetic, the interpreter if it is too large to
+	 * compile, or the stack machine if it is too deep
+	 */
+	ExpressionFunction exactFunction() {
+		ExpressionFunction f = exactFunction;
+		if (f == null) {
+			if (deep) {
+				StackMachine m = typedMachine();
+				f = (scalars, arrays) -> m.runExact(scalars, arrays, new LongStack(m.maxDepth));
+			} else {
+				try {
+					f = BytecodeCompiler.compileExact(typedTree());
+				} catch (IllegalStateException e) {
+					f = parsed::evalExact;
+				}
+			}
+			exactFunction = f;
+		}
+		return f;
+	}
+
+	/**
+	 * @return Bytecode form with long arithmetic, the interpreter if it is too large to
+	 * compile, or the stack machine if it is too deep
+	 */
+	ExpressionFunction.OfLong longFunction() {
+		ExpressionFunction.OfLong f = longFunction;
+		if (f == null) {
+			if (deep) {
+				StackMachine m = typedMachine();
+				f = (scalars, arrays) -> m.runLong(scalars, arrays, new LongStack(m.maxDepth), false);
+			} else {
+				try {
+					f = BytecodeCompiler.compileLong(typedTree(), false);
+				} catch (IllegalStateException e) {
+					f = parsed::evalLong;
+				}
+			}
+			longFunction = f;
+		}
+		return f;
+	}
+
+	/**
+	 * @return Bytecode form with checked long arithmetic, the interpreter if it is too large to
+	 * compile, or the stack machine if it is too deep
+	 */
+	ExpressionFunction.OfLong longExactFunction() {
+		ExpressionFunction.OfLong f = longExactFunction;
+		if (f == null) {
+			if (deep) {
+				StackMachine m = typedMachine();
+				f = (scalars, arrays) -> m.runLong(scalars, arrays, new LongStack(m.maxDepth), true);
+			} else {
+				try {
+					f = BytecodeCompiler.compileLong(typedTree(), true);
+				} catch (IllegalStateException e) {
+					f = parsed::evalLongExact;
+				}
+			}
+			longExactFunction = f;
+		}
+		return f;
+	}
+
+	/**
+	 * @return Bytecode form with double arithmetic, the interpreter if it is too large to
+	 * compile, or the stack machine if it is too deep
+	 */
+	ExpressionFunction.OfDouble doubleFunction() {
+		ExpressionFunction.OfDouble f = doubleFunction;
+		if (f == null) {
+			if (deep) {
+				StackMachine m = typedMachine();
+				f = (scalars, arrays) -> m.runDouble(scalars, arrays, new LongStack(m.maxDepth));
+			} else {
+				try {
+					f = BytecodeCompiler.compileDouble(parsed);
+				} catch (IllegalStateException e) {
+					f = parsed::evalDouble;
+				}
+			}
+			doubleFunction = f;
+		}
+		return f;
+	}
+
+	/**
+	 * @return Postfix form of the tree
+	 */
+	StackMachine machine() {
+		StackMachine m = machine;
+		if (m == null) {
+			m = StackMachine.compile(tree);
+			machine = m;
+		}
+		return m;
+	}
+
+	/**
+	 * @return Postfix form of the tree as parsed, for checked, long and double runs
+	 */
+	StackMachine typedMachine() {
+		StackMachine m = typedMachine;
+		if (m == null) {
+			m = StackMachine.compileTyped(parsed);
+			typedMachine = m;
+		}
+		return m;
+	}
+}
@@ -0,0 +1,141 @@
+package apps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection to an EvaluationServer. A client sends one request at a time and must
+ * be used by one thread at a time.
+ */
+public class EvaluationClient implements Closeable {
+
+	private final SocketChannel channel;
+	private final BufferedReader in;
+	private final Writer out;
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param address Server address: an InetSocketAddress, or a UnixDomainSocketAddress
+	 * @throws IOException If the server cannot be reached
+	 */
+	public EvaluationClient(SocketAddress address) throws IOException {
+		channel = address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX)
+				: SocketChannel.open();
+		channel.connect(address);
+		in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+		out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Evaluates an expression on the server.
+	 *
+	 * @param expr Expression
+	 * @param file Symbol values file, as named for the server, or null for none
+	 * @return Value of the expression
+	 * @throws IOException If the server cannot be reached or cannot evaluate the
+	 * expression, with the server's message
+	 */
+	public int evaluate(String expr, String file) throws IOException {
+		String response = request(file == null ? "EVAL " + expr : "EVAL " + expr + "\t" + file);
+		try {
+			return Integer.parseInt(response);
+		} catch (NumberFormatException e) {
+			throw new IOException("unexpected response: " + response);
+		}
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param request Request line, see EvaluationServer
+	 * @return Response without its OK
+	 * @throws IOException If the server cannot be reached or answers with an error
+	 */
+	public String request(String request) throws IOException {
+		out.write(request);
+		out.write('\n');
+		out.flush();
+		String response = in.readLine();
+		if (response == null) {
+			throw new IOException("connection closed by server");
+		}
+		if (response.startsWith("ERROR ")) {
+			throw new IOException(response.substring(6));
+		}
+		return response.startsWith("OK ") ? response.substring(3) : "";
+	}
+
+	/**
+	 * Ends the session and closes the connection.
+	 */
+	public void close() throws IOException {
+		try {
+			out.write("QUIT\n");
+			out.flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Evaluates an expression on a server from several connections at once, and
+	 * reports the throughput.
+	 * <pre>
+	 *     java apps.EvaluationClient --port 7070 "a - (b+A[B[2]])*d + 3" etest1.txt 8 10000
+	 * </pre>
+	 *
+	 * @param args Server address as for EvaluationServer, expression, symbol values
+	 * file or "-" for none, and optionally the number of connections and of requests
+	 * per connection
+	 */
+	public static void main(String[] args) throws Exception {
+		SocketAddress address = EvaluationServer.address(args, "EvaluationClient");
+		if (args.length < 4) {
+			System.err.println("usage: java apps.EvaluationClient (--port <port> | --socket <path>) <expression> (<symbol file> | -) [<connections> [<requests>]]");
+			System.exit(2);
+		}
+		String expr = args[2];
+		String file = args[3].equals("-") ? null : args[3];
+		int connections = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		int requests = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+		AtomicLong failed = new AtomicLong();
+		int[] value = new int[1];
+		Thread[] threads = new Thread[connections];
+		long start = System.nanoTime();
+		for (int t = 0; t < connections; t++) {
+			threads[t] = new Thread(() -> {
+				try (EvaluationClient client = new EvaluationClient(address)) {
+					for (int i = 0; i < requests; i++) {
+						value[0] = client.evaluate(expr, file);
+					}
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					System.err.println(e.getMessage());
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+		if (failed.get() == 0) {
+			System.out.println(value[0]);
+		}
+		System.err.println(connections + " connections, " + (long)connections * requests + " requests, "
+				+ failed.get() + " failed, " + ms + " ms, " + (long)connections * requests * 1000 / ms + " requests/s");
+	}
+}
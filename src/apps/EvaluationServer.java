@@ -0,0 +1,308 @@
+package apps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-running evaluation server on a local TCP port or Unix-domain socket, so that
+ * scripts can evaluate expressions without starting a JVM each time. Every connection
+ * is handled on its own virtual thread where the JVM has them (Java 21 and later), and
+ * on a pooled platform thread otherwise.
+ *
+ * Parsed expressions are shared by all connections through an ExpressionCache, and
+ * each symbol values file is loaded once into a SymbolStore and kept, being reloaded
+ * only when it is modified. Connections that need a file while it is being loaded wait
+ * for that load rather than starting their own. The symbols of a request are bound to the loaded values
+ * by reference.
+ *
+ * The protocol is line-based UTF-8 text, one response line per request line, so it
+ * can be driven with nc or socat as well as EvaluationClient. Requests can be
+ * pipelined; responses come back in order.
+ * <pre>
+ *     EVAL expression[TAB symbol file]  -&gt;  OK value       or  ERROR message
+ *     STATS                             -&gt;  OK requests=... expressions=... hits=... misses=... files=...
+ *     PING                              -&gt;  OK
+ *     QUIT                              closes the connection
+ * </pre>
+ * Symbol file names are resolved by the server, relative to its working directory.
+ */
+public class EvaluationServer implements Closeable {
+
+	/**
+	 * A symbol values file as loaded, or being loaded, at a modification time.
+	 */
+	private static class Loaded {
+
+		final long modified;
+		private final FutureTask<SymbolStore> load;
+
+		Loaded(Path file, long modified) {
+			this.modified = modified;
+			load = new FutureTask<SymbolStore>(() -> SymbolStore.load(file));
+		}
+
+		/**
+		 * Loads the file in the first thread to call this, and waits for that load in
+		 * the others.
+		 */
+		SymbolStore store() throws IOException {
+			load.run(); // does nothing once the load has been started
+			try {
+				return load.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException)cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException)cause;
+				}
+				throw (Error)cause;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while loading symbol values");
+			}
+		}
+	}
+
+	private final SocketAddress address;
+	private final ExpressionCache cache;
+	private final ConcurrentHashMap<Path, Loaded> files = new ConcurrentHashMap<Path, Loaded>();
+	private final AtomicLong requests = new AtomicLong();
+
+	private ServerSocketChannel server;
+	private ExecutorService connections;
+	private Thread acceptor;
+
+	/**
+	 * Creates a server, which listens once started.
+	 *
+	 * @param address Local address: an InetSocketAddress, or a UnixDomainSocketAddress
+	 * @param cache Cache of parsed expressions
+	 */
+	public EvaluationServer(SocketAddress address, ExpressionCache cache) {
+		this.address = address;
+		this.cache = cache;
+	}
+
+	/**
+	 * Binds the socket and starts accepting connections in the background. A stale
+	 * Unix-domain socket file is removed first.
+	 *
+	 * @return Address the server listens on, with the actual port for port 0
+	 * @throws IOException If the address cannot be bound
+	 */
+	public SocketAddress start() throws IOException {
+		if (address instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			server = ServerSocketChannel.open();
+		}
+		server.bind(address);
+		connections = connectionExecutor();
+		acceptor = new Thread(this::accept, "evaluation-server");
+		acceptor.start();
+		return server.getLocalAddress();
+	}
+
+	/**
+	 * Stops accepting connections and closes the socket. Connections in progress are
+	 * left to finish.
+	 */
+	public void close() throws IOException {
+		if (server != null) {
+			server.close();
+			connections.shutdown();
+			if (address instanceof UnixDomainSocketAddress) {
+				Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+			}
+		}
+	}
+
+	/**
+	 * Waits until the server is closed.
+	 *
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void join() throws InterruptedException {
+		acceptor.join();
+	}
+
+	/**
+	 * @return One new thread per task, virtual where the JVM supports it
+	 */
+	static ExecutorService connectionExecutor() {
+		try {
+			// Java 21; looked up reflectively so the server still runs on 17
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread t = new Thread(task, "evaluation-connection");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	private void accept() {
+		try {
+			while (true) {
+				SocketChannel channel = server.accept();
+				connections.execute(() -> serve(channel));
+			}
+		} catch (ClosedChannelException e) {
+			// closed by close()
+		} catch (IOException e) {
+			System.err.println("evaluation server stopped: " + e);
+		}
+	}
+
+	/**
+	 * Answers the requests of one connection until it is closed or sends QUIT.
+	 */
+	private void serve(SocketChannel channel) {
+		try (SocketChannel ch = channel) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null && !line.equals("QUIT")) {
+				out.write(respond(line));
+				out.write('\n');
+				if (!in.ready()) { // flush once the pipelined requests are answered
+					out.flush();
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// the client went away
+		}
+	}
+
+	/**
+	 * Answers one request.
+	 *
+	 * @param request Request line
+	 * @return Response line
+	 */
+	String respond(String request) {
+		requests.incrementAndGet();
+		if (request.startsWith("EVAL ")) {
+			String text = request.substring(5);
+			int tab = text.lastIndexOf('\t');
+			String file = tab < 0 ? null : text.substring(tab + 1).trim();
+			try {
+				CompiledExpression compiled = cache.get(tab < 0 ? text : text.substring(0, tab));
+				Bindings bindings = compiled.newBindings();
+				if (file != null && file.length() > 0) {
+					bindings.bindSymbolValues(store(Paths.get(file)));
+				}
+				return "OK " + compiled.evaluate(bindings);
+			} catch (NoSuchFileException e) {
+				return "ERROR no such file: " + e.getMessage();
+			} catch (IOException | RuntimeException e) {
+				return "ERROR " + oneLine(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+			}
+		}
+		if (request.equals("STATS")) {
+			return "OK requests=" + requests.get() + " expressions=" + cache.size() + " hits=" + cache.hits()
+					+ " misses=" + cache.misses() + " files=" + files.size();
+		}
+		if (request.equals("PING")) {
+			return "OK";
+		}
+		return "ERROR unknown request: " + oneLine(request);
+	}
+
+	/**
+	 * Returns the values of a symbol file, loading it if it was not loaded yet or has
+	 * been modified since. Each version of a file is loaded once: connections that need
+	 * it while it is loading wait for that load. A load that fails is not kept, so the
+	 * next request tries again.
+	 */
+	private SymbolStore store(Path file) throws IOException {
+		Path key = file.toAbsolutePath().normalize();
+		long modified = Files.getLastModifiedTime(key).toMillis();
+		Loaded loaded = files.get(key);
+		if (loaded == null || loaded.modified != modified) {
+			loaded = files.compute(key, (k, old) -> old != null && old.modified == modified ? old : new Loaded(k, modified));
+		}
+		try {
+			return loaded.store();
+		} catch (IOException | RuntimeException e) {
+			files.remove(key, loaded);
+			throw e;
+		}
+	}
+
+	private static String oneLine(String s) {
+		return s.replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/**
+	 * Runs a server until it is killed, which removes its Unix-domain socket file.
+	 * <pre>
+	 *     java apps.EvaluationServer --port 7070
+	 *     java apps.EvaluationServer --socket /tmp/evaluator.sock
+	 * </pre>
+	 *
+	 * @param args --port and a TCP port on the loopback interface, or --socket and
+	 * the path of a Unix-domain socket
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		EvaluationServer server = new EvaluationServer(address(args, "EvaluationServer"), ExpressionCache.shared());
+		System.err.println("listening on " + server.start());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+			} catch (IOException e) {
+			}
+		}));
+		server.join();
+	}
+
+	/**
+	 * Parses --port N or --socket PATH.
+	 *
+	 * @param args Command line
+	 * @param program Class name for the usage message
+	 * @return Address given
+	 */
+	static SocketAddress address(String[] args, String program) {
+		if (args.length >= 2 && args[0].equals("--port")) {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]));
+		}
+		if (args.length >= 2 && args[0].equals("--socket")) {
+			return UnixDomainSocketAddress.of(args[1]);
+		}
+		System.err.println("usage: java apps." + program + " (--port <port> | --socket <path>) ...");
+		System.exit(2);
+		return null;
+	}
+}
@@ -1,15 +1,31 @@
 package apps;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 public class Evaluator {
 
 	/**
-	 * @param args
+	 * Evaluates expressions typed in at the console, or with arguments, runs a batch
+	 * of jobs (see BatchRunner for the format):
+	 * <pre>
+	 *     java apps.Evaluator [--symbols] jobs.txt     # job file
+	 *     java apps.Evaluator [--symbols] -            # jobs on standard input
+	 * </pre>
+	 * 
+	 * @param args Batch mode arguments, none for the interactive prompt
 	 */
 	public static void main(String[] args) throws IOException {
+		if (args.length > 0) {
+			boolean printSymbols = args[0].equals("--symbols");
+			if (args.length != (printSymbols ? 2 : 1)) {
+				System.err.println("usage: java apps.Evaluator [--symbols] (<job file> | -)");
+				System.exit(2);
+			}
+			BatchRunner.run(args[args.length - 1], printSymbols);
+			return;
+		}
 		Scanner sc = new Scanner(System.in);
 		while (true) {
 			System.out.print("\nEnter the expression, or hit return to quit => ");
@@ -17,14 +33,12 @@ public class Evaluator {
 			if (line.length() == 0) {
 				break;
 			}
-			Expression expr = new Expression(line);
-			expr.buildSymbols();
+			Expression expr = ExpressionCache.shared().expression(line);
 
 			System.out.print("Enter symbol values file name, or hit return if no symbols => ");
 			line = sc.nextLine();
 			if (line.length() != 0) {
-				Scanner scfile = new Scanner(new File(line));
-				expr.loadSymbolValues(scfile);
+				expr.loadSymbolValues(Paths.get(line));
 				expr.printScalars();
 				expr.printArrays();
 			}
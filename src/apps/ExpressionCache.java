@@ -0,0 +1,218 @@
+package apps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of parsed expressions, keyed by the tokens of the expression text, so
+ * that "a + b" and "a+b" share an entry while "a b" and "ab", which are different
+ * token sequences, do not. The text of the lookup that missed is what gets parsed, so
+ * a cached expression fails to parse exactly as the same text parsed directly does.
+ *
+ * When the cache is full the least recently used entry is evicted. Lookups are safe
+ * from any number of threads, and a hit takes no lock: each entry keeps a stamp of when
+ * it was last used, read from a clock that only inserts advance, and a hit writes it
+ * only when it has changed, so threads hitting the same entries do not contend. Entries
+ * hit since the last insert count as equally recent. Only inserting an entry, with the
+ * eviction it may need, is done under a lock; the expression is parsed before that, so
+ * a miss never holds up other threads, and two threads missing on the same text at once
+ * may both parse it, the first result winning. Evicting scans the entries for the
+ * oldest stamp, which costs much less than the parse that led to it.
+ *
+ * Hit, miss and eviction counts are kept for sizing the cache.
+ */
+public class ExpressionCache {
+
+	/**
+	 * Entries held by the shared cache
+	 */
+	public static final int DEFAULT_SIZE = 1024;
+
+	private static final ExpressionCache SHARED = new ExpressionCache(DEFAULT_SIZE);
+
+	private final int maxSize;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	// advanced by two per insert, under the lock on entries; an insert is stamped with
+	// it and a hit with one more, so a hit ranks after every insert before it
+	private volatile long clock;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param maxSize Largest number of expressions held
+	 * @throws IllegalArgumentException If maxSize is not positive
+	 */
+	public ExpressionCache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("cache size must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * A cached expression and when it was last used
+	 */
+	private static final class Entry {
+		final CompiledExpression compiled;
+		volatile long used;
+
+		Entry(CompiledExpression compiled, long used) {
+			this.compiled = compiled;
+			this.used = used;
+		}
+
+		CompiledExpression use(long now) {
+			if (used != now) {
+				used = now;
+			}
+			return compiled;
+		}
+	}
+
+	/**
+	 * @return Cache shared by the whole process
+	 */
+	public static ExpressionCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the parsed form of an expression, parsing and caching it on a miss.
+	 *
+	 * @param text Expression text
+	 * @return Parsed expression
+	 * @throws IllegalArgumentException If the expression is malformed; nothing is cached
+	 */
+	public CompiledExpression get(String text) {
+		String key = normalize(text);
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			hits.increment();
+			return entry.use(clock + 1);
+		}
+		misses.increment();
+		CompiledExpression compiled = CompiledExpression.parse(text);
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null) {
+				return entry.use(clock + 1);
+			}
+			if (entries.size() >= maxSize) {
+				evictEldest();
+			}
+			clock += 2;
+			entries.put(key, new Entry(compiled, clock));
+			return compiled;
+		}
+	}
+
+	/**
+	 * Removes the entry used least recently. Called with the lock on entries held.
+	 */
+	private void evictEldest() {
+		String eldest = null;
+		long oldest = Long.MAX_VALUE;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			long used = e.getValue().used;
+			if (used < oldest) {
+				oldest = used;
+				eldest = e.getKey();
+			}
+		}
+		if (eldest != null) {
+			entries.remove(eldest);
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Returns a new Expression for the given text, with its symbols built, backed by
+	 * the cached parsed form.
+	 *
+	 * @param text Expression text
+	 * @return Expression ready for loadSymbolValues and evaluate
+	 * @throws IllegalArgumentException If the expression is malformed
+	 */
+	public Expression expression(String text) {
+		return new Expression(get(text));
+	}
+
+	/**
+	 * @return Number of expressions in the cache
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Largest number of expressions held
+	 */
+	public int maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return Number of lookups that found the expression cached
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of lookups that had to parse the expression
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Number of entries evicted to stay within the size bound
+	 */
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Removes every entry. The counters are kept.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Spells out the tokens of an expression one space apart, except that an array name
+	 * is followed directly by its '[', as the lexer requires. Two texts have the same key
+	 * exactly when they have the same tokens.
+	 *
+	 * @param text Expression text
+	 * @return Text used as the cache key
+	 * @throws IllegalArgumentException If the text has a character that cannot start a
+	 * token
+	 */
+	static String normalize(String text) {
+		Lexer tokens = Lexer.lex(text);
+		StringBuilder sb = new StringBuilder(text.length() + tokens.count);
+		for (int i = 0; i < tokens.count; i++) {
+			if (i > 0 && tokens.types[i - 1] != Lexer.ARRAY) {
+				sb.append(' ');
+			}
+			sb.append(text, tokens.starts[i], tokens.starts[i] + tokens.lengths[i]);
+		}
+		return sb.toString();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "ExpressionCache[size=" + size() + "/" + maxSize + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+	}
+}
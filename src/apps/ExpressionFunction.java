@@ -0,0 +1,50 @@
+package apps;
+
+import structures.IntArray;
+
+/**
+ * A compiled expression: a function from symbol values, indexed by slot, to the
+ * value of the expression.
+ */
+public interface ExpressionFunction {
+
+	/**
+	 * Evaluates the expression.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot, followed by room for any
+	 * shared subexpressions (see CompiledExpression.frameSize)
+	 * @param arrays Array values, indexed by array slot
+	 * @return Value of the expression
+	 */
+	int eval(int[] scalars, IntArray[] arrays);
+
+	/**
+	 * An expression compiled for long arithmetic.
+	 */
+	interface OfLong {
+
+		/**
+		 * Evaluates the expression.
+		 *
+		 * @param scalars Scalar values, indexed by scalar slot
+		 * @param arrays Array values, indexed by array slot
+		 * @return Value of the expression
+		 */
+		long eval(int[] scalars, IntArray[] arrays);
+	}
+
+	/**
+	 * An expression compiled for double arithmetic.
+	 */
+	interface OfDouble {
+
+		/**
+		 * Evaluates the expression.
+		 *
+		 * @param scalars Scalar values, indexed by scalar slot
+		 * @param arrays Array values, indexed by array slot
+		 * @return Value of the expression
+		 */
+		double eval(int[] scalars, IntArray[] arrays);
+	}
+}
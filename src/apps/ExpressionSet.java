@@ -0,0 +1,202 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import structures.IntArray;
+import structures.IntStack;
+
+/**
+ * Many expressions evaluated together against the same symbol values. All of them are
+ * parsed against one symbol table, so each variable has a single symbol whatever the
+ * number of expressions that use it, and a values file is loaded once for the whole
+ * set.
+ *
+ * The parsed expressions are simplified and merged into one DAG: a subexpression that
+ * occurs in several expressions, or several times in one, is computed once per
+ * evaluation and its value reused by all of them.
+ *
+ * Evaluation reuses an operand stack, so a set must not be evaluated by several threads
+ * at once.
+ */
+public class ExpressionSet {
+
+	/**
+	 * Expressions, in the order given
+	 */
+	final String[] texts;
+
+	/**
+	 * Symbol table shared by all the expressions
+	 */
+	final SymbolTable symbols;
+
+	/**
+	 * Postfix code of each expression, in order; later programs read values shared
+	 * by earlier ones
+	 */
+	final StackMachine[] programs;
+
+	/**
+	 * Total number of nodes over all parsed expressions
+	 */
+	final int parsedNodes;
+
+	/**
+	 * Nodes no longer evaluated because their subexpression is shared
+	 */
+	final int deduplicated;
+
+	private final int[] frame;
+	private final IntArray[] arrayFrame;
+	private final IntStack operandStack = new IntStack();
+
+	/**
+	 * Parses a set of expressions and builds their symbols, with all values zero.
+	 *
+	 * @param exprs Expressions
+	 * @throws IllegalArgumentException If there are no expressions, or one of them is
+	 * malformed
+	 */
+	public ExpressionSet(Collection<String> exprs) {
+		if (exprs.isEmpty()) {
+			throw new IllegalArgumentException("no expressions");
+		}
+		texts = exprs.toArray(new String[exprs.size()]);
+		symbols = new SymbolTable();
+		Node[] roots = new Node[texts.length];
+		int nodes = 0;
+		for (int i = 0; i < texts.length; i++) {
+			long start = Metrics.start();
+			Node parsed = Parser.parse(texts[i], symbols);
+			nodes += Optimizer.size(parsed);
+			roots[i] = Optimizer.optimize(parsed);
+			Metrics.parsed(start, texts[i]);
+		}
+		parsedNodes = nodes;
+		CommonSubexpressions cse = new CommonSubexpressions(roots, symbols.scalars.size());
+		deduplicated = cse.deduplicated;
+		frame = new int[symbols.scalars.size() + cse.temps];
+		arrayFrame = new IntArray[symbols.arrays.size()];
+		programs = new StackMachine[texts.length];
+		int depth = 0;
+		for (int i = 0; i < texts.length; i++) {
+			programs[i] = StackMachine.compile(cse.trees[i]);
+			depth = Math.max(depth, programs[i].maxDepth);
+		}
+		operandStack.ensureCapacity(depth);
+	}
+
+	/**
+	 * @return Number of expressions
+	 */
+	public int size() {
+		return texts.length;
+	}
+
+	/**
+	 * @param i Position of an expression
+	 * @return Text of the expression
+	 */
+	public String expression(int i) {
+		return texts[i];
+	}
+
+	/**
+	 * @return Number of nodes, over all the expressions, that are no longer evaluated
+	 * because an identical subexpression is computed once and reused
+	 */
+	public int deduplicated() {
+		return deduplicated;
+	}
+
+	/**
+	 * @return Number of nodes in all the expressions as parsed
+	 */
+	public int parsedNodes() {
+		return parsedNodes;
+	}
+
+	/**
+	 * Loads values for the symbols of all the expressions from a file, in the format
+	 * of Expression.loadSymbolValues(Scanner).
+	 *
+	 * @param file Symbol values file
+	 * @throws IOException If the file cannot be read or is malformed
+	 */
+	public void loadSymbolValues(Path file) throws IOException {
+		SymbolFileReader.load(file, symbols);
+	}
+
+	/**
+	 * Loads values for the symbols of all the expressions from a channel, which is read
+	 * until every symbol has a value or it ends, and is not closed.
+	 *
+	 * @param channel Channel to read values from
+	 * @throws IOException If the channel cannot be read or the input is malformed
+	 */
+	public void loadSymbolValues(ReadableByteChannel channel) throws IOException {
+		SymbolFileReader.load(channel, symbols);
+	}
+
+	/**
+	 * Gives the symbols of all the expressions the values they have in a store. Arrays
+	 * are bound to the store's by reference, not copied; symbols the store lacks keep
+	 * their values.
+	 *
+	 * @param store Loaded symbol values
+	 * @return Number of symbols bound
+	 */
+	public int bindSymbolValues(SymbolStore store) {
+		return store.bind(symbols);
+	}
+
+	/**
+	 * Evaluates every expression in one pass over the merged DAG.
+	 *
+	 * @return Value of each expression, in order
+	 */
+	public int[] evaluate() {
+		int[] results = new int[texts.length];
+		evaluate(results);
+		return results;
+	}
+
+	/**
+	 * Evaluates every expression in one pass over the merged DAG, without allocating.
+	 *
+	 * @param results Receives the value of each expression, in order
+	 * @throws IllegalArgumentException If results is shorter than the set
+	 */
+	public void evaluate(int[] results) {
+		if (results.length < texts.length) {
+			throw new IllegalArgumentException("results has " + results.length + " entries for " + texts.length + " expressions");
+		}
+		ArrayList<ScalarSymbol> scalars = symbols.scalars;
+		for (int i = 0; i < scalars.size(); i++) {
+			frame[i] = scalars.get(i).value;
+		}
+		ArrayList<ArraySymbol> arrays = symbols.arrays;
+		for (int i = 0; i < arrayFrame.length; i++) {
+			arrayFrame[i] = arrays.get(i).storage();
+		}
+		for (int i = 0; i < programs.length; i++) {
+			results[i] = programs[i].run(frame, arrayFrame, operandStack);
+		}
+	}
+
+	/**
+	 * Utility method, prints the symbols shared by the expressions
+	 */
+	public void printSymbols() {
+		for (ScalarSymbol ss : symbols.scalars) {
+			System.out.println(ss);
+		}
+		for (ArraySymbol as : symbols.arrays) {
+			System.out.println(as);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package apps;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+import structures.IntArray;
+import structures.IntStack;
+
+/**
+ * Re-evaluates an expression after a few of its symbol values change, recomputing only
+ * the subtrees that depend on them and reusing the cached value of every other node.
+ *
+ * The tree, with its shared subexpressions merged, is flattened into a DAG whose nodes
+ * are numbered children first, so a node's number is always greater than those of
+ * its operands. Each node keeps its last value. A change marks the nodes that read
+ * the changed value dirty: the scalar's leaves, or the subscripts that last read the
+ * changed array element. Evaluation then visits dirty nodes in ascending order, and
+ * marks the parents of a node dirty only if its value actually changed, so a change
+ * that is absorbed (say by a multiplication by zero) goes no further.
+ *
+ * Scalar changes are found by comparing values at each evaluation, and a replaced
+ * array (a new IntArray in its slot) counts as a change to all of its elements.
+ * Changes made in place to an array's elements must be reported through
+ * arrayElementChanged.
+ *
+ * An instance holds evaluation state and must not be shared between threads.
+ */
+class IncrementalEvaluator {
+
+	private static final byte CONST = 0;
+	private static final byte SCALAR = 1;
+	private static final byte SUBSCRIPT = 2;
+	private static final byte NEG = 3;
+	private static final byte BINARY = 4;
+
+	// by node number
+	private final byte[] kind;
+	private final int[] arg;
+	private final int[] left;
+	private final int[] right;
+	private final int[] value;
+	private final long[] lastIndex;
+	private final int[][] parents;
+
+	private final int root;
+
+	/**
+	 * Leaf nodes of each scalar, by scalar slot
+	 */
+	private final int[][] scalarNodes;
+
+	/**
+	 * Subscript nodes of each array, by array slot
+	 */
+	private final int[][] subscriptNodes;
+
+	private final int[] scalarValues;
+	private final IntArray[] boundArrays;
+
+	private final BitSet dirty = new BitSet();
+	private int recomputed;
+
+	/**
+	 * Flattens a tree. Every node starts dirty.
+	 *
+	 * @param tree Root of the expression, with its common subexpressions shared
+	 * @param scalarCount Number of scalar slots of the expression
+	 * @param arrayCount Number of array slots of the expression
+	 */
+	IncrementalEvaluator(Node tree, int scalarCount, int arrayCount) {
+		Builder b = new Builder();
+		root = b.add(tree);
+		int n = b.kind.size();
+		kind = new byte[n];
+		arg = b.arg.toArray();
+		left = b.left.toArray();
+		right = b.right.toArray();
+		value = new int[n];
+		lastIndex = new long[n];
+		int[] kinds = b.kind.toArray();
+		for (int i = 0; i < n; i++) {
+			kind[i] = (byte)kinds[i];
+		}
+
+		int[] parentCount = new int[n];
+		int[] scalarUses = new int[scalarCount];
+		int[] arrayUses = new int[arrayCount];
+		for (int i = 0; i < n; i++) {
+			if (left[i] >= 0) {
+				parentCount[left[i]]++;
+			}
+			if (right[i] >= 0) {
+				parentCount[right[i]]++;
+			}
+			if (kind[i] == SCALAR) {
+				scalarUses[arg[i]]++;
+			} else if (kind[i] == SUBSCRIPT) {
+				arrayUses[arg[i]]++;
+			}
+		}
+		parents = new int[n][];
+		for (int i = 0; i < n; i++) {
+			parents[i] = new int[parentCount[i]];
+			parentCount[i] = 0;
+		}
+		scalarNodes = new int[scalarCount][];
+		for (int s = 0; s < scalarCount; s++) {
+			scalarNodes[s] = new int[scalarUses[s]];
+			scalarUses[s] = 0;
+		}
+		subscriptNodes = new int[arrayCount][];
+		for (int a = 0; a < arrayCount; a++) {
+			subscriptNodes[a] = new int[arrayUses[a]];
+			arrayUses[a] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			if (left[i] >= 0) {
+				parents[left[i]][parentCount[left[i]]++] = i;
+			}
+			if (right[i] >= 0) {
+				parents[right[i]][parentCount[right[i]]++] = i;
+			}
+			if (kind[i] == SCALAR) {
+				scalarNodes[arg[i]][scalarUses[arg[i]]++] = i;
+			} else if (kind[i] == SUBSCRIPT) {
+				subscriptNodes[arg[i]][arrayUses[arg[i]]++] = i;
+			}
+		}
+
+		scalarValues = new int[scalarCount];
+		boundArrays = new IntArray[arrayCount];
+		invalidate();
+	}
+
+	/**
+	 * Numbers the nodes of a tree children first, merging the uses of a shared value
+	 * into the node of its Let.
+	 */
+	private static class Builder {
+
+		final IntStack kind = new IntStack();
+		final IntStack arg = new IntStack();
+		final IntStack left = new IntStack();
+		final IntStack right = new IntStack();
+		final HashMap<Integer, Integer> lets = new HashMap<Integer, Integer>();
+
+		/**
+		 * Numbers the nodes of a tree, walking it in evaluation order without recursion.
+		 *
+		 * @return Number of the root
+		 */
+		int add(Node tree) {
+			IntStack ids = new IntStack();
+			for (Node node : Node.postorder(tree)) {
+				if (node instanceof Node.Constant) {
+					ids.push(node(CONST, ((Node.Constant)node).value, -1, -1));
+				} else if (node instanceof Node.Scalar) {
+					ids.push(node(SCALAR, ((Node.Scalar)node).slot, -1, -1));
+				} else if (node instanceof Node.Subscript) {
+					ids.push(node(SUBSCRIPT, ((Node.Subscript)node).slot, ids.pop(), -1));
+				} else if (node instanceof Node.Negate) {
+					ids.push(node(NEG, 0, ids.pop(), -1));
+				} else if (node instanceof Node.Let) {
+					lets.put(((Node.Let)node).slot, ids.peek()); // the Let is its value's node
+				} else if (node instanceof Node.Temp) {
+					ids.push(lets.get(((Node.Temp)node).slot));
+				} else {
+					int r = ids.pop();
+					int l = ids.pop();
+					ids.push(node(BINARY, ((Node.Binary)node).op, l, r));
+				}
+			}
+			return ids.pop();
+		}
+
+		private int node(byte k, int a, int l, int r) {
+			kind.push(k);
+			arg.push(a);
+			left.push(l);
+			right.push(r);
+			return kind.size() - 1;
+		}
+	}
+
+	/**
+	 * Marks every node dirty, so that the next evaluation recomputes the whole tree.
+	 */
+	void invalidate() {
+		dirty.set(0, kind.length);
+	}
+
+	/**
+	 * Records that an element of an array was changed in place. Only the subscripts
+	 * whose last evaluation read that element are marked dirty.
+	 *
+	 * @param slot Array slot
+	 * @param index Index of the changed element
+	 */
+	void arrayElementChanged(int slot, long index) {
+		for (int node : subscriptNodes[slot]) {
+			if (lastIndex[node] == index) {
+				dirty.set(node);
+			}
+		}
+	}
+
+	/**
+	 * Brings the cached values up to date with the given symbol values and returns the
+	 * value of the expression. If evaluation throws, every node is left dirty.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @return Value of the expression
+	 */
+	int evaluate(int[] scalars, IntArray[] arrays) {
+		for (int s = 0; s < scalarValues.length; s++) {
+			if (scalars[s] != scalarValues[s]) {
+				scalarValues[s] = scalars[s];
+				mark(scalarNodes[s]);
+			}
+		}
+		for (int a = 0; a < boundArrays.length; a++) {
+			if (arrays[a] != boundArrays[a]) {
+				boundArrays[a] = arrays[a];
+				mark(subscriptNodes[a]);
+			}
+		}
+		recomputed = 0;
+		try {
+			// parents are numbered above their children, so they are reached in this same pass
+			for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+				int v = compute(i, scalars, arrays);
+				dirty.clear(i);
+				recomputed++;
+				if (v != value[i]) {
+					value[i] = v;
+					mark(parents[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			invalidate();
+			throw e;
+		}
+		return value[root];
+	}
+
+	/**
+	 * @return Number of nodes recomputed by the last evaluation
+	 */
+	int recomputed() {
+		return recomputed;
+	}
+
+	/**
+	 * @return Number of nodes in the DAG
+	 */
+	int size() {
+		return kind.length;
+	}
+
+	private void mark(int[] nodes) {
+		for (int node : nodes) {
+			dirty.set(node);
+		}
+	}
+
+	private int compute(int i, int[] scalars, IntArray[] arrays) {
+		switch (kind[i]) {
+		case CONST:
+			return arg[i];
+		case SCALAR:
+			return scalars[arg[i]];
+		case SUBSCRIPT:
+			lastIndex[i] = value[left[i]];
+			return arrays[arg[i]].get(lastIndex[i]);
+		case NEG:
+			return -value[left[i]];
+		default:
+			int l = value[left[i]];
+			int r = value[right[i]];
+			switch (arg[i]) {
+			case '+': return l + r;
+			case '-': return l - r;
+			case '*': return l * r;
+			default: return l / r;
+			}
+		}
+	}
+}
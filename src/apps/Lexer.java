@@ -0,0 +1,159 @@
+package apps;
+
+import java.util.Arrays;
+
+/**
+ * Splits the text of an expression into tokens, in a single left to right pass over
+ * its characters. Tokens are not objects: the type, start and length of token i are
+ * held in three primitive arrays, so lexing allocates a few arrays whatever the length
+ * of the expression, and a token's text is only taken out of the expression when it is
+ * needed, as for a symbol name.
+ *
+ * A name followed by '[' is an ARRAY, and the '[' is the next token; any other name is
+ * a SCALAR. Whitespace separates tokens and is dropped.
+ */
+final class Lexer {
+
+	/**
+	 * Unsigned decimal integer
+	 */
+	static final byte CONSTANT = 0;
+
+	/**
+	 * Name of a scalar variable
+	 */
+	static final byte SCALAR = 1;
+
+	/**
+	 * Name of an array variable, followed by its subscript
+	 */
+	static final byte ARRAY = 2;
+
+	/**
+	 * One of + - * /
+	 */
+	static final byte OPERATOR = 3;
+
+	/**
+	 * ( or [
+	 */
+	static final byte OPEN = 4;
+
+	/**
+	 * ) or ]
+	 */
+	static final byte CLOSE = 5;
+
+	/**
+	 * Expression text
+	 */
+	final String text;
+
+	/**
+	 * Number of tokens
+	 */
+	int count;
+
+	/**
+	 * Type of each token
+	 */
+	byte[] types;
+
+	/**
+	 * Position in the text of the first character of each token
+	 */
+	int[] starts;
+
+	/**
+	 * Number of characters of each token
+	 */
+	int[] lengths;
+
+	private Lexer(String text) {
+		this.text = text;
+		int capacity = Math.max(16, text.length() / 4);
+		types = new byte[capacity];
+		starts = new int[capacity];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * Splits an expression into tokens.
+	 *
+	 * @param text Expression text
+	 * @return Tokens of the expression
+	 * @throws IllegalArgumentException If the expression has a character that cannot
+	 * start a token
+	 */
+	static Lexer lex(String text) {
+		Lexer lexer = new Lexer(text);
+		lexer.lex();
+		return lexer;
+	}
+
+	private void lex() {
+		int n = text.length();
+		int i = 0;
+		while (i < n) {
+			char ch = text.charAt(i);
+			int start = i;
+			if (ch == ' ' || ch == '\t') {
+				i++;
+				continue;
+			}
+			byte type;
+			if (Character.isDigit(ch)) {
+				while (i < n && Character.isDigit(text.charAt(i))) {
+					i++;
+				}
+				type = CONSTANT;
+			} else if (Character.isLetter(ch)) {
+				while (i < n && Character.isLetterOrDigit(text.charAt(i))) {
+					i++;
+				}
+				type = i < n && text.charAt(i) == '[' ? ARRAY : SCALAR;
+			} else if (ch == '+' || ch == '-' || ch == '*' || ch == '/') {
+				i++;
+				type = OPERATOR;
+			} else if (ch == '(' || ch == '[') {
+				i++;
+				type = OPEN;
+			} else if (ch == ')' || ch == ']') {
+				i++;
+				type = CLOSE;
+			} else {
+				throw new IllegalArgumentException("unexpected character '" + ch + "' at position " + i + " in \"" + text + "\"");
+			}
+			add(type, start, i - start);
+		}
+	}
+
+	private void add(byte type, int start, int length) {
+		if (count == types.length) {
+			int capacity = count * 2;
+			types = Arrays.copyOf(types, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		types[count] = type;
+		starts[count] = start;
+		lengths[count] = length;
+		count++;
+	}
+
+	/**
+	 * @param i Token number
+	 * @return First character of the token
+	 */
+	char first(int i) {
+		return text.charAt(starts[i]);
+	}
+
+	/**
+	 * @param i Token number
+	 * @return Text of the token
+	 */
+	String token(int i) {
+		return text.substring(starts[i], starts[i] + lengths[i]);
+	}
+}
@@ -0,0 +1,426 @@
+package apps;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Process-wide counters and timers for the three phases of working with expressions:
+ * parsing (Expression.buildSymbols, CompiledExpression.parse, ExpressionSet), loading
+ * symbol values, and evaluating (Expression.evaluate and CompiledExpression.evaluate).
+ * A snapshot gives the number of times each phase ran, a latency histogram for each,
+ * the number of symbol values loaded, the bytes of symbol values parsed, and the hits
+ * and misses of the shared ExpressionCache.
+ *
+ * Recording allocates nothing and costs a few uncontended LongAdder increments and two
+ * reads of System.nanoTime, so metrics are on by default. Evaluations are often faster
+ * than reading the clock, so every evaluation is counted but only about one in SAMPLE,
+ * chosen at random on each thread, is timed. Since the choice does not depend on the
+ * binding context, evaluations with a fresh context each time are timed as often as
+ * those reusing one. Metrics can be turned off with -Dapps.metrics=false.
+ *
+ * Every phase is also reported to JDK Flight Recorder as an event in the "Expression
+ * Evaluator" category: apps.Parse, apps.Load and apps.Evaluate, the last one for
+ * timed evaluations only. Events are only built when a recording has them enabled.
+ * apps.Evaluate is disabled by default because of their number; enable it in the
+ * recording settings to see them.
+ */
+public final class Metrics {
+
+	/**
+	 * Phases that are timed.
+	 */
+	public enum Phase {
+		/**
+		 * Parsing an expression and building its symbols
+		 */
+		PARSE,
+		/**
+		 * Loading symbol values from a file, channel or Scanner
+		 */
+		LOAD,
+		/**
+		 * Evaluating an expression
+		 */
+		EVALUATE
+	}
+
+	/**
+	 * Number of histogram buckets: bucket 0 counts durations of 0ns, and bucket i > 0
+	 * durations from 2^(i-1) up to 2^i - 1 ns
+	 */
+	public static final int BUCKETS = 64;
+
+	/**
+	 * About one evaluation in this many is timed; a power of two
+	 */
+	public static final int SAMPLE = 64;
+
+	/**
+	 * Whether phases are recorded
+	 */
+	static final boolean ENABLED = !"false".equals(System.getProperty("apps.metrics"));
+
+	/**
+	 * Count, total time and latency histogram of one phase.
+	 */
+	private static class Timer {
+
+		final LongAdder count = new LongAdder();
+		final LongAdder timed = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+		Timer() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			if (nanos < 0) { // nanoTime is monotonic, but be safe
+				nanos = 0;
+			}
+			timed.increment();
+			this.nanos.add(nanos);
+			buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+		}
+
+		void reset() {
+			count.reset();
+			timed.reset();
+			nanos.reset();
+			for (LongAdder bucket : buckets) {
+				bucket.reset();
+			}
+		}
+	}
+
+	private static final Timer[] timers = { new Timer(), new Timer(), new Timer() };
+	private static final LongAdder symbolsLoaded = new LongAdder();
+	private static final LongAdder bytesParsed = new LongAdder();
+
+	@Name("apps.Parse")
+	@Label("Parse Expression")
+	@Category("Expression Evaluator")
+	@Description("An expression parsed and its symbols built")
+	static class ParseEvent extends Event {
+
+		@Label("Expression")
+		String expression;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("apps.Load")
+	@Label("Load Symbol Values")
+	@Category("Expression Evaluator")
+	@Description("Symbol values loaded from a file, channel or Scanner")
+	static class LoadEvent extends Event {
+
+		@Label("Source")
+		String source;
+
+		@Label("Symbols")
+		int symbols;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("apps.Evaluate")
+	@Label("Evaluate Expression")
+	@Category("Expression Evaluator")
+	@Description("An expression evaluated")
+	@Enabled(false)
+	static class EvaluateEvent extends Event {
+
+		@Label("Expression")
+		String expression;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	// only asked whether their event types are enabled
+	private static final ParseEvent parseProbe = new ParseEvent();
+	private static final LoadEvent loadProbe = new LoadEvent();
+	private static final EvaluateEvent evaluateProbe = new EvaluateEvent();
+
+	private Metrics() {
+	}
+
+	/**
+	 * @return Start time to pass to one of the recording methods
+	 */
+	static long start() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records that an expression was parsed.
+	 *
+	 * @param start Value of start() before parsing
+	 * @param expression Expression text
+	 */
+	static void parsed(long start, String expression) {
+		if (!ENABLED) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		timers[Phase.PARSE.ordinal()].count.increment();
+		timers[Phase.PARSE.ordinal()].record(nanos);
+		if (parseProbe.isEnabled()) {
+			ParseEvent event = new ParseEvent();
+			event.expression = expression;
+			event.time = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records that symbol values were loaded.
+	 *
+	 * @param start Value of start() before loading
+	 * @param source File name, or a description of the input
+	 * @param symbols Number of symbols given values
+	 * @param bytes Number of bytes of input parsed
+	 */
+	static void loaded(long start, Object source, int symbols, long bytes) {
+		if (!ENABLED) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		timers[Phase.LOAD.ordinal()].count.increment();
+		timers[Phase.LOAD.ordinal()].record(nanos);
+		symbolsLoaded.add(symbols);
+		bytesParsed.add(bytes);
+		if (loadProbe.isEnabled()) {
+			LoadEvent event = new LoadEvent();
+			event.source = String.valueOf(source);
+			event.symbols = symbols;
+			event.bytes = bytes;
+			event.time = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Counts an evaluation about to start, and decides whether to time it.
+	 *
+	 * @return Start time to pass to evaluated, or 0 if the evaluation is not timed
+	 */
+	static long startEvaluation() {
+		if (!ENABLED) {
+			return 0;
+		}
+		timers[Phase.EVALUATE.ordinal()].count.increment();
+		if ((ThreadLocalRandom.current().nextInt() & (SAMPLE - 1)) != 0) {
+			return 0;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time an evaluation took, if it was timed.
+	 *
+	 * @param start Value of startEvaluation before evaluating
+	 * @param expression Expression text
+	 */
+	static void evaluated(long start, String expression) {
+		if (start == 0) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		timers[Phase.EVALUATE.ordinal()].record(nanos);
+		if (evaluateProbe.isEnabled()) {
+			EvaluateEvent event = new EvaluateEvent();
+			event.expression = expression;
+			event.time = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Takes a snapshot of all metrics. Counters keep running while the snapshot is
+	 * taken, so its figures may be off by the few operations that ran meanwhile.
+	 *
+	 * @return Snapshot
+	 */
+	public static Snapshot snapshot() {
+		return new Snapshot();
+	}
+
+	/**
+	 * Sets all metrics to zero, apart from the counters of the shared ExpressionCache.
+	 */
+	public static void reset() {
+		for (Timer timer : timers) {
+			timer.reset();
+		}
+		symbolsLoaded.reset();
+		bytesParsed.reset();
+	}
+
+	/**
+	 * Values of all metrics at one point in time.
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts = new long[timers.length];
+		private final long[] timed = new long[timers.length];
+		private final long[] nanos = new long[timers.length];
+		private final long[][] histograms = new long[timers.length][BUCKETS];
+		private final long symbols;
+		private final long bytes;
+		private final long cacheHits;
+		private final long cacheMisses;
+
+		private Snapshot() {
+			for (int p = 0; p < timers.length; p++) {
+				counts[p] = timers[p].count.sum();
+				timed[p] = timers[p].timed.sum();
+				nanos[p] = timers[p].nanos.sum();
+				for (int i = 0; i < BUCKETS; i++) {
+					histograms[p][i] = timers[p].buckets[i].sum();
+				}
+			}
+			symbols = symbolsLoaded.sum();
+			bytes = bytesParsed.sum();
+			cacheHits = ExpressionCache.shared().hits();
+			cacheMisses = ExpressionCache.shared().misses();
+		}
+
+		/**
+		 * @param phase Phase
+		 * @return Number of times the phase ran
+		 */
+		public long count(Phase phase) {
+			return counts[phase.ordinal()];
+		}
+
+		/**
+		 * @param phase Phase
+		 * @return Number of times the phase was timed, which for EVALUATE is about one
+		 * in SAMPLE and for the other phases every time
+		 */
+		public long timed(Phase phase) {
+			return timed[phase.ordinal()];
+		}
+
+		/**
+		 * @param phase Phase
+		 * @return Mean time the phase took when timed, in nanoseconds, or 0 if it was
+		 * never timed
+		 */
+		public long meanNanos(Phase phase) {
+			long n = timed(phase);
+			return n == 0 ? 0 : nanos[phase.ordinal()] / n;
+		}
+
+		/**
+		 * @param phase Phase
+		 * @return Latency histogram of the times the phase was timed, see BUCKETS
+		 */
+		public long[] histogram(Phase phase) {
+			return histograms[phase.ordinal()].clone();
+		}
+
+		/**
+		 * Estimates a percentile of the time a phase took, from its histogram.
+		 *
+		 * @param phase Phase
+		 * @param percent Percentile, from 0 to 100
+		 * @return Upper bound of the histogram bucket holding the percentile, in
+		 * nanoseconds, or 0 if the phase never ran
+		 * @throws IllegalArgumentException If percent is out of range
+		 */
+		public long percentileNanos(Phase phase, double percent) {
+			if (!(percent >= 0 && percent <= 100)) {
+				throw new IllegalArgumentException("percentile " + percent + " is not between 0 and 100");
+			}
+			long[] histogram = histograms[phase.ordinal()];
+			long total = 0;
+			for (long n : histogram) {
+				total += n;
+			}
+			long rank = (long)Math.ceil(total * percent / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += histogram[i];
+				if (seen >= rank && seen > 0) {
+					return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @return Number of evaluations
+		 */
+		public long evaluations() {
+			return count(Phase.EVALUATE);
+		}
+
+		/**
+		 * @return Number of symbols given values by all loads
+		 */
+		public long symbolsLoaded() {
+			return symbols;
+		}
+
+		/**
+		 * @return Bytes of symbol values files and channels parsed, or mapped for
+		 * snapshots
+		 */
+		public long bytesParsed() {
+			return bytes;
+		}
+
+		/**
+		 * @return Hits of the shared ExpressionCache
+		 */
+		public long cacheHits() {
+			return cacheHits;
+		}
+
+		/**
+		 * @return Misses of the shared ExpressionCache
+		 */
+		public long cacheMisses() {
+			return cacheMisses;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Phase phase : Phase.values()) {
+				sb.append(phase.name().toLowerCase()).append(": count=").append(count(phase))
+						.append(" mean=").append(meanNanos(phase))
+						.append("ns p50<=").append(percentileNanos(phase, 50))
+						.append("ns p99<=").append(percentileNanos(phase, 99)).append("ns\n");
+			}
+			sb.append("symbols loaded=").append(symbols).append(" bytes parsed=").append(bytes)
+					.append(" cache hits=").append(cacheHits).append(" misses=").append(cacheMisses);
+			return sb.toString();
+		}
+	}
+}
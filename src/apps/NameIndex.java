@@ -0,0 +1,95 @@
+package apps;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Open-addressing hash map from symbol names to values, that can be probed with the
+ * UTF-8 bytes of a name sitting in a buffer. Lets the symbol file loader find a symbol
+ * without creating a String for every name it reads.
+ *
+ * @param <T> Type of values
+ */
+final class NameIndex<T> {
+
+	private byte[][] keys = new byte[16][];
+	private Object[] values = new Object[16];
+	private int size;
+
+	/**
+	 * Maps a name to a value, replacing any value it had.
+	 *
+	 * @param name Name
+	 * @param value Value
+	 */
+	void put(String name, T value) {
+		if (2 * (size + 1) > keys.length) {
+			grow();
+		}
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int i = find(key, 0, key.length);
+		if (keys[i] == null) {
+			keys[i] = key;
+			size++;
+		}
+		values[i] = value;
+	}
+
+	/**
+	 * Looks up the name held in buf[off, off+len).
+	 *
+	 * @param buf Buffer holding the name
+	 * @param off Offset of the name in buf
+	 * @param len Length of the name
+	 * @return Value mapped to the name, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	T get(byte[] buf, int off, int len) {
+		return (T)values[find(buf, off, len)];
+	}
+
+	/**
+	 * @return Slot holding the name, or the empty slot where it would go
+	 */
+	private int find(byte[] buf, int off, int len) {
+		int mask = keys.length - 1;
+		int i = hash(buf, off, len) & mask;
+		while (keys[i] != null && !matches(keys[i], buf, off, len)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static boolean matches(byte[] key, byte[] buf, int off, int len) {
+		if (key.length != len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (key[i] != buf[off + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] buf, int off, int len) {
+		int h = 0;
+		for (int i = 0; i < len; i++) {
+			h = 31 * h + buf[off + i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private void grow() {
+		byte[][] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new byte[oldKeys.length * 2][];
+		values = new Object[oldKeys.length * 2];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != null) {
+				int i = find(oldKeys[j], 0, oldKeys[j].length);
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
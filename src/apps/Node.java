@@ -0,0 +1,468 @@
+package apps;
+
+import structures.IntArray;
+import structures.IntStack;
+import structures.Stack;
+
+/**
+ * A node in the parsed form of an expression. Nodes are immutable: a tree is built
+ * once by the Parser and can then be evaluated any number of times, against any
+ * values loaded for its symbols.
+ *
+ * Scalar and array references are resolved to slots when the tree is built, so
+ * evaluation reads values by position and never looks at names.
+ *
+ * Besides eval, with wrapping int arithmetic, a tree as parsed can be evaluated with
+ * int arithmetic that throws on overflow, with long arithmetic, wrapping or not, and
+ * with double arithmetic. Symbol values are ints in every case and are widened as
+ * they are read. Subscripts are always integers: in double evaluation they are
+ * computed with long arithmetic.
+ *
+ * The eval methods recurse once per level of the tree, so they, and the bytecode
+ * compiler, are only used on trees at most RECURSION_LIMIT deep. Deeper trees run on a
+ * StackMachine, whose stack is on the heap; every other pass over a tree walks it with
+ * an explicit stack, whatever its depth.
+ */
+abstract class Node {
+
+	/**
+	 * Depth of the deepest tree that is evaluated or compiled by recursion, well within
+	 * the default thread stack
+	 */
+	static final int RECURSION_LIMIT = 1000;
+
+	/**
+	 * Evaluates the subtree rooted at this node.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @return Value of the subtree
+	 */
+	abstract int eval(int[] scalars, IntArray[] arrays);
+
+	/**
+	 * Evaluates the subtree with int arithmetic that throws instead of overflowing.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @return Value of the subtree
+	 * @throws ArithmeticException If an operation overflows or divides by zero
+	 */
+	int evalExact(int[] scalars, IntArray[] arrays) {
+		throw notParsed();
+	}
+
+	/**
+	 * Evaluates the subtree with long arithmetic.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @return Value of the subtree
+	 */
+	long evalLong(int[] scalars, IntArray[] arrays) {
+		throw notParsed();
+	}
+
+	/**
+	 * Evaluates the subtree with long arithmetic that throws instead of overflowing.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @return Value of the subtree
+	 * @throws ArithmeticException If an operation overflows or divides by zero
+	 */
+	long evalLongExact(int[] scalars, IntArray[] arrays) {
+		throw notParsed();
+	}
+
+	/**
+	 * Evaluates the subtree with double arithmetic.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @return Value of the subtree
+	 */
+	double evalDouble(int[] scalars, IntArray[] arrays) {
+		throw notParsed();
+	}
+
+	/**
+	 * Lists the nodes of a tree in evaluation order: children before their parent, and
+	 * the left operand before the right.
+	 *
+	 * @param tree Root of the tree
+	 * @return Nodes of the tree, the root last
+	 */
+	static Node[] postorder(Node tree) {
+		// two-stack postorder: nodes come off 'order' children first, left before right
+		Stack<Node> pending = new Stack<Node>();
+		Stack<Node> order = new Stack<Node>();
+		pending.push(tree);
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			order.push(node);
+			if (node instanceof Subscript) {
+				pending.push(((Subscript)node).index);
+			} else if (node instanceof Negate) {
+				pending.push(((Negate)node).operand);
+			} else if (node instanceof Let) {
+				pending.push(((Let)node).value);
+			} else if (node instanceof Binary) {
+				pending.push(((Binary)node).left);
+				pending.push(((Binary)node).right);
+			}
+		}
+		Node[] nodes = new Node[order.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = order.pop();
+		}
+		return nodes;
+	}
+
+	/**
+	 * @param tree Root of a tree
+	 * @return Number of nodes on the longest path from the root to a leaf
+	 */
+	static int depth(Node tree) {
+		Stack<Node> pending = new Stack<Node>();
+		IntStack depths = new IntStack();
+		pending.push(tree);
+		depths.push(1);
+		int max = 0;
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			int depth = depths.pop();
+			max = Math.max(max, depth);
+			if (node instanceof Subscript) {
+				pending.push(((Subscript)node).index);
+				depths.push(depth + 1);
+			} else if (node instanceof Negate) {
+				pending.push(((Negate)node).operand);
+				depths.push(depth + 1);
+			} else if (node instanceof Let) {
+				pending.push(((Let)node).value);
+				depths.push(depth + 1);
+			} else if (node instanceof Binary) {
+				pending.push(((Binary)node).left);
+				depths.push(depth + 1);
+				pending.push(((Binary)node).right);
+				depths.push(depth + 1);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Writes the subtree fully parenthesized, as (a+(-b))*A[c]. Pieces of text and
+	 * nodes still to write are kept on a stack, so a deep tree can be written too.
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		Stack<Object> pending = new Stack<Object>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			Object item = pending.pop();
+			if (item instanceof String) {
+				sb.append((String)item);
+			} else if (item instanceof Constant) {
+				sb.append(((Constant)item).value);
+			} else if (item instanceof Scalar) {
+				sb.append(((Scalar)item).name);
+			} else if (item instanceof Temp) {
+				sb.append('$').append(((Temp)item).slot);
+			} else if (item instanceof Subscript) { // pushed last to first
+				pending.push("]");
+				pending.push(((Subscript)item).index);
+				pending.push(((Subscript)item).name + "[");
+			} else if (item instanceof Negate) {
+				pending.push(")");
+				pending.push(((Negate)item).operand);
+				pending.push("(-");
+			} else if (item instanceof Let) {
+				pending.push(")");
+				pending.push(((Let)item).value);
+				pending.push("($" + ((Let)item).slot + "=");
+			} else {
+				Binary b = (Binary)item;
+				pending.push(")");
+				pending.push(b.right);
+				pending.push(String.valueOf(b.op));
+				pending.push(b.left);
+				pending.push("(");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Shared values are only kept as ints, so the other evaluations take trees as
+	 * parsed
+	 */
+	private UnsupportedOperationException notParsed() {
+		return new UnsupportedOperationException(getClass().getSimpleName() + " can only be evaluated with int arithmetic");
+	}
+
+	/**
+	 * l / r, throwing instead of overflowing as the Math.*Exact methods do
+	 */
+	static int divideExact(int l, int r) {
+		if (l == Integer.MIN_VALUE && r == -1) {
+			throw new ArithmeticException("integer overflow");
+		}
+		return l / r;
+	}
+
+	/**
+	 * l / r, throwing instead of overflowing as the Math.*Exact methods do
+	 */
+	static long divideExact(long l, long r) {
+		if (l == Long.MIN_VALUE && r == -1) {
+			throw new ArithmeticException("long overflow");
+		}
+		return l / r;
+	}
+
+	/**
+	 * An integer constant.
+	 */
+	static final class Constant extends Node {
+
+		final int value;
+
+		Constant(int value) {
+			this.value = value;
+		}
+
+		int eval(int[] scalars, IntArray[] arrays) {
+			return value;
+		}
+
+		int evalExact(int[] scalars, IntArray[] arrays) {
+			return value;
+		}
+
+		long evalLong(int[] scalars, IntArray[] arrays) {
+			return value;
+		}
+
+		long evalLongExact(int[] scalars, IntArray[] arrays) {
+			return value;
+		}
+
+		double evalDouble(int[] scalars, IntArray[] arrays) {
+			return value;
+		}
+	}
+
+	/**
+	 * A reference to a scalar variable.
+	 */
+	static final class Scalar extends Node {
+
+		final String name;
+		final int slot;
+
+		Scalar(String name, int slot) {
+			this.name = name;
+			this.slot = slot;
+		}
+
+		int eval(int[] scalars, IntArray[] arrays) {
+			return scalars[slot];
+		}
+
+		int evalExact(int[] scalars, IntArray[] arrays) {
+			return scalars[slot];
+		}
+
+		long evalLong(int[] scalars, IntArray[] arrays) {
+			return scalars[slot];
+		}
+
+		long evalLongExact(int[] scalars, IntArray[] arrays) {
+			return scalars[slot];
+		}
+
+		double evalDouble(int[] scalars, IntArray[] arrays) {
+			return scalars[slot];
+		}
+	}
+
+	/**
+	 * An array variable with a subscript expression.
+	 */
+	static final class Subscript extends Node {
+
+		final String name;
+		final int slot;
+		final Node index;
+
+		Subscript(String name, int slot, Node index) {
+			this.name = name;
+			this.slot = slot;
+			this.index = index;
+		}
+
+		int eval(int[] scalars, IntArray[] arrays) {
+			return arrays[slot].get(index.eval(scalars, arrays));
+		}
+
+		int evalExact(int[] scalars, IntArray[] arrays) {
+			return arrays[slot].get(index.evalExact(scalars, arrays));
+		}
+
+		long evalLong(int[] scalars, IntArray[] arrays) {
+			return arrays[slot].get(index.evalLong(scalars, arrays));
+		}
+
+		long evalLongExact(int[] scalars, IntArray[] arrays) {
+			return arrays[slot].get(index.evalLongExact(scalars, arrays));
+		}
+
+		double evalDouble(int[] scalars, IntArray[] arrays) {
+			return arrays[slot].get(index.evalLong(scalars, arrays));
+		}
+	}
+
+	/**
+	 * Unary minus.
+	 */
+	static final class Negate extends Node {
+
+		final Node operand;
+
+		Negate(Node operand) {
+			this.operand = operand;
+		}
+
+		int eval(int[] scalars, IntArray[] arrays) {
+			return -operand.eval(scalars, arrays);
+		}
+
+		int evalExact(int[] scalars, IntArray[] arrays) {
+			return Math.negateExact(operand.evalExact(scalars, arrays));
+		}
+
+		long evalLong(int[] scalars, IntArray[] arrays) {
+			return -operand.evalLong(scalars, arrays);
+		}
+
+		long evalLongExact(int[] scalars, IntArray[] arrays) {
+			return Math.negateExact(operand.evalLongExact(scalars, arrays));
+		}
+
+		double evalDouble(int[] scalars, IntArray[] arrays) {
+			return -operand.evalDouble(scalars, arrays);
+		}
+	}
+
+	/**
+	 * One of the four binary operators. Division truncates, except in double
+	 * evaluation.
+	 */
+	static final class Binary extends Node {
+
+		final char op;
+		final Node left;
+		final Node right;
+
+		Binary(char op, Node left, Node right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		int eval(int[] scalars, IntArray[] arrays) {
+			int l = left.eval(scalars, arrays);
+			int r = right.eval(scalars, arrays);
+			switch (op) {
+			case '+': return l + r;
+			case '-': return l - r;
+			case '*': return l * r;
+			default: return l / r;
+			}
+		}
+
+		int evalExact(int[] scalars, IntArray[] arrays) {
+			int l = left.evalExact(scalars, arrays);
+			int r = right.evalExact(scalars, arrays);
+			switch (op) {
+			case '+': return Math.addExact(l, r);
+			case '-': return Math.subtractExact(l, r);
+			case '*': return Math.multiplyExact(l, r);
+			default: return divideExact(l, r);
+			}
+		}
+
+		long evalLong(int[] scalars, IntArray[] arrays) {
+			long l = left.evalLong(scalars, arrays);
+			long r = right.evalLong(scalars, arrays);
+			switch (op) {
+			case '+': return l + r;
+			case '-': return l - r;
+			case '*': return l * r;
+			default: return l / r;
+			}
+		}
+
+		long evalLongExact(int[] scalars, IntArray[] arrays) {
+			long l = left.evalLongExact(scalars, arrays);
+			long r = right.evalLongExact(scalars, arrays);
+			switch (op) {
+			case '+': return Math.addExact(l, r);
+			case '-': return Math.subtractExact(l, r);
+			case '*': return Math.multiplyExact(l, r);
+			default: return divideExact(l, r);
+			}
+		}
+
+		double evalDouble(int[] scalars, IntArray[] arrays) {
+			double l = left.evalDouble(scalars, arrays);
+			double r = right.evalDouble(scalars, arrays);
+			switch (op) {
+			case '+': return l + r;
+			case '-': return l - r;
+			case '*': return l * r;
+			default: return l / r;
+			}
+		}
+	}
+
+	/**
+	 * The first evaluation of a common subexpression. Its value is also kept in a
+	 * scalar slot past the expression's own scalars, for the Temp nodes that reuse it
+	 * later in evaluation order.
+	 */
+	static final class Let extends Node {
+
+		final int slot;
+		final Node value;
+
+		Let(int slot, Node value) {
+			this.slot = slot;
+			this.value = value;
+		}
+
+		int eval(int[] scalars, IntArray[] arrays) {
+			int v = value.eval(scalars, arrays);
+			scalars[slot] = v;
+			return v;
+		}
+	}
+
+	/**
+	 * A later use of a common subexpression, reading the value its Let kept.
+	 */
+	static final class Temp extends Node {
+
+		final int slot;
+
+		Temp(int slot) {
+			this.slot = slot;
+		}
+
+		int eval(int[] scalars, IntArray[] arrays) {
+			return scalars[slot];
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package apps;
+
+import structures.Stack;
+
+/**
+ * Simplifies a parsed tree before it is evaluated or compiled. The rewrites keep the
+ * exact integer semantics of the tree, wraparound included, and never remove anything
+ * that could throw:
+ *
+ * <ul>
+ * <li>operators over constants are folded, except division by a constant zero;</li>
+ * <li>x+0, 0+x, x-0, x*1, 1*x and x/1 become x; 0-x, x*-1 and -1*x become -x;</li>
+ * <li>--x becomes x;</li>
+ * <li>constants in chains such as x+2-5 or x*3*4 are combined, since + and * are
+ * associative in wraparound arithmetic;</li>
+ * <li>x*0 and 0*x become 0, but only when x cannot throw, that is, when it has no
+ * subscript (which can be out of bounds) and no division other than by a nonzero
+ * constant.</li>
+ * </ul>
+ *
+ * Trees are walked with explicit stacks, so their depth is not limited by recursion.
+ */
+class Optimizer {
+
+	/**
+	 * Simplifies a tree. The tree is not changed; untouched subtrees are shared with
+	 * the result.
+	 *
+	 * @param tree Root of the parsed expression
+	 * @return Root of the simplified expression
+	 */
+	static Node optimize(Node tree) {
+		// children come before their parent, so their simplified forms are on the stack
+		Stack<Node> results = new Stack<Node>();
+		for (Node node : Node.postorder(tree)) {
+			if (node instanceof Node.Subscript) {
+				Node.Subscript subscript = (Node.Subscript)node;
+				Node index = results.pop();
+				results.push(index == subscript.index ? node : new Node.Subscript(subscript.name, subscript.slot, index));
+			} else if (node instanceof Node.Negate) {
+				results.push(negate(results.pop()));
+			} else if (node instanceof Node.Binary) {
+				Node.Binary binary = (Node.Binary)node;
+				Node right = results.pop();
+				Node left = results.pop();
+				Node simplified = binary(binary.op, left, right);
+				if (simplified == null) {
+					simplified = left == binary.left && right == binary.right ? node : new Node.Binary(binary.op, left, right);
+				}
+				results.push(simplified);
+			} else if (node instanceof Node.Let) { // left as it is
+				results.pop();
+				results.push(node);
+			} else {
+				results.push(node);
+			}
+		}
+		return results.pop();
+	}
+
+	private static Node negate(Node operand) {
+		if (operand instanceof Node.Constant) {
+			return new Node.Constant(-((Node.Constant)operand).value);
+		}
+		if (operand instanceof Node.Negate) {
+			return ((Node.Negate)operand).operand;
+		}
+		return new Node.Negate(operand);
+	}
+
+	/**
+	 * Simplifies a binary operator over already simplified operands.
+	 *
+	 * @return Simplified node, or null if no rule applies
+	 */
+	private static Node binary(char op, Node left, Node right) {
+		boolean constLeft = left instanceof Node.Constant;
+		boolean constRight = right instanceof Node.Constant;
+		int l = constLeft ? ((Node.Constant)left).value : 0;
+		int r = constRight ? ((Node.Constant)right).value : 0;
+		if (constLeft && constRight) {
+			switch (op) {
+			case '+': return new Node.Constant(l + r);
+			case '-': return new Node.Constant(l - r);
+			case '*': return new Node.Constant(l * r);
+			default: return r == 0 ? null : new Node.Constant(l / r); // dividing by zero must still throw
+			}
+		}
+		switch (op) {
+		case '+':
+			if (constRight) {
+				return r == 0 ? left : addConstant(left, r);
+			}
+			if (constLeft && l == 0) {
+				return right;
+			}
+			break;
+		case '-':
+			if (constRight) {
+				return r == 0 ? left : addConstant(left, -r);
+			}
+			if (constLeft && l == 0) {
+				return negate(right);
+			}
+			break;
+		case '*':
+			if (constRight) {
+				return multiplyConstant(left, r);
+			}
+			if (constLeft) {
+				return multiplyConstant(right, l);
+			}
+			break;
+		default:
+			if (constRight) {
+				if (r == 1) {
+					return left;
+				}
+				if (r == -1) {
+					return negate(left);
+				}
+			}
+			break;
+		}
+		return null;
+	}
+
+	/**
+	 * Builds x+k, merging k into a constant already added to or subtracted from x.
+	 */
+	private static Node addConstant(Node x, int k) {
+		if (x instanceof Node.Binary) {
+			Node.Binary binary = (Node.Binary)x;
+			if ((binary.op == '+' || binary.op == '-') && binary.right instanceof Node.Constant) {
+				int c = ((Node.Constant)binary.right).value;
+				k += binary.op == '+' ? c : -c;
+				x = binary.left;
+			}
+		}
+		if (k == 0) {
+			return x;
+		}
+		// x+(-5) reads better as x-5; MIN_VALUE has no positive form
+		return k < 0 && k != Integer.MIN_VALUE ? new Node.Binary('-', x, new Node.Constant(-k))
+				: new Node.Binary('+', x, new Node.Constant(k));
+	}
+
+	/**
+	 * Builds x*k, merging k into a constant x is already multiplied by.
+	 */
+	private static Node multiplyConstant(Node x, int k) {
+		if (x instanceof Node.Binary) {
+			Node.Binary binary = (Node.Binary)x;
+			if (binary.op == '*' && binary.right instanceof Node.Constant) {
+				k *= ((Node.Constant)binary.right).value;
+				x = binary.left;
+			}
+		}
+		switch (k) {
+		case 0: return canThrow(x) ? new Node.Binary('*', x, new Node.Constant(0)) : new Node.Constant(0);
+		case 1: return x;
+		case -1: return negate(x);
+		default: return new Node.Binary('*', x, new Node.Constant(k));
+		}
+	}
+
+	/**
+	 * @return True if evaluating the tree could throw: it has a subscript, or a division
+	 * by anything other than a nonzero constant
+	 */
+	static boolean canThrow(Node tree) {
+		Stack<Node> pending = new Stack<Node>();
+		pending.push(tree);
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			if (node instanceof Node.Subscript) {
+				return true;
+			}
+			if (node instanceof Node.Negate) {
+				pending.push(((Node.Negate)node).operand);
+			} else if (node instanceof Node.Let) {
+				pending.push(((Node.Let)node).value);
+			} else if (node instanceof Node.Binary) {
+				Node.Binary binary = (Node.Binary)node;
+				if (binary.op == '/' && !(binary.right instanceof Node.Constant && ((Node.Constant)binary.right).value != 0)) {
+					return true;
+				}
+				pending.push(binary.left);
+				pending.push(binary.right);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Number of nodes in the tree
+	 */
+	static int size(Node tree) {
+		Stack<Node> pending = new Stack<Node>();
+		pending.push(tree);
+		int size = 0;
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			size++;
+			if (node instanceof Node.Subscript) {
+				pending.push(((Node.Subscript)node).index);
+			} else if (node instanceof Node.Negate) {
+				pending.push(((Node.Negate)node).operand);
+			} else if (node instanceof Node.Let) {
+				pending.push(((Node.Let)node).value);
+			} else if (node instanceof Node.Binary) {
+				pending.push(((Node.Binary)node).left);
+				pending.push(((Node.Binary)node).right);
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,204 @@
+package apps;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import structures.IntArray;
+
+/**
+ * Evaluates a batch of rows, as in Expression.evaluateBatch, on several threads. The
+ * rows are split into chunks; each chunk is evaluated by one thread with its own
+ * scratch buffers and written to its own range of the results array, so threads share
+ * nothing but the parsed tree, which is immutable.
+ *
+ * By default chunks run on the common ForkJoinPool, splitting the batch recursively
+ * until a range is no larger than the chunk size. Any other Executor can be supplied
+ * instead, in which case every chunk is submitted to it as a separate task.
+ *
+ * A ParallelBatch may be used from one thread at a time.
+ */
+public class ParallelBatch {
+
+	/**
+	 * Default number of rows per chunk
+	 */
+	public static final int DEFAULT_CHUNK = 16 * BatchEvaluator.BLOCK;
+
+	private final Expression expr;
+	private final Node tree;
+	private int chunkSize = DEFAULT_CHUNK;
+	private Executor executor = ForkJoinPool.commonPool();
+
+	private final ConcurrentHashMap<String, LongAdder> rowsByThread = new ConcurrentHashMap<String, LongAdder>();
+	private final LongAdder chunks = new LongAdder();
+
+	/**
+	 * Prepares parallel evaluation of an expression, building its symbols if needed.
+	 * Later changes to the expression's symbols do not affect this object.
+	 *
+	 * @param expr Expression to evaluate
+	 */
+	public ParallelBatch(Expression expr) {
+		expr.compile();
+		this.expr = expr;
+		this.tree = expr.tree;
+	}
+
+	/**
+	 * Sets the largest number of rows evaluated as one task.
+	 *
+	 * @param chunkSize Rows per chunk
+	 * @return This object
+	 * @throws IllegalArgumentException If chunkSize is not positive
+	 */
+	public ParallelBatch setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Sets the executor that runs chunks: a ForkJoinPool, or any other Executor.
+	 *
+	 * @param executor Executor for chunks
+	 * @return This object
+	 */
+	public ParallelBatch setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Evaluates the expression for every row, as in
+	 * Expression.evaluateBatch(int[][], int[][], int[]).
+	 *
+	 * @param scalarColumns One column of values per scalar slot
+	 * @param arrayValues Values of each array, indexed by array slot
+	 * @param results Receives the value of the expression for each row
+	 * @throws IllegalArgumentException If the columns or arrays do not match the expression
+	 * @throws ArithmeticException If a row divides by zero
+	 */
+	public void evaluate(int[][] scalarColumns, int[][] arrayValues, int[] results) {
+		evaluate(scalarColumns, Expression.wrap(arrayValues), results);
+	}
+
+	/**
+	 * Evaluates the expression for every row, as in
+	 * Expression.evaluateBatch(int[][], IntArray[], int[]).
+	 *
+	 * @param scalarColumns One column of values per scalar slot
+	 * @param arrayValues Values of each array, indexed by array slot
+	 * @param results Receives the value of the expression for each row
+	 * @throws IllegalArgumentException If the columns or arrays do not match the expression
+	 * @throws ArithmeticException If a row divides by zero
+	 */
+	public void evaluate(int[][] scalarColumns, IntArray[] arrayValues, int[] results) {
+		expr.checkBatch(scalarColumns, arrayValues, results.length);
+		rowsByThread.clear();
+		chunks.reset();
+		if (executor instanceof ForkJoinPool) {
+			((ForkJoinPool)executor).invoke(new Chunk(scalarColumns, arrayValues, results, 0, results.length));
+		} else {
+			submitChunks(scalarColumns, arrayValues, results);
+		}
+	}
+
+	/**
+	 * Reports how the last batch was split: the number of rows each thread evaluated.
+	 *
+	 * @return Rows evaluated, by thread name
+	 */
+	public Map<String, Long> rowsPerThread() {
+		TreeMap<String, Long> split = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : rowsByThread.entrySet()) {
+			split.put(e.getKey(), e.getValue().sum());
+		}
+		return split;
+	}
+
+	/**
+	 * @return Number of chunks the last batch was split into
+	 */
+	public long chunkCount() {
+		return chunks.sum();
+	}
+
+	private void submitChunks(int[][] scalarColumns, IntArray[] arrayValues, int[] results) {
+		int rows = results.length;
+		int count = (rows + chunkSize - 1) / chunkSize;
+		CountDownLatch done = new CountDownLatch(count);
+		AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		for (int start = 0; start < rows; start += chunkSize) {
+			int from = start;
+			int to = Math.min(rows, start + chunkSize);
+			executor.execute(() -> {
+				try {
+					evaluateChunk(scalarColumns, arrayValues, results, from, to);
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while evaluating batch", e);
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	private void evaluateChunk(int[][] scalarColumns, IntArray[] arrayValues, int[] results, int from, int to) {
+		new BatchEvaluator(tree).evaluate(scalarColumns, arrayValues, results, from, to);
+		chunks.increment();
+		rowsByThread.computeIfAbsent(Thread.currentThread().getName(), k -> new LongAdder()).add(to - from);
+	}
+
+	/**
+	 * A range of rows, split in half until it fits in one chunk.
+	 */
+	private class Chunk extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[][] scalarColumns;
+		private final IntArray[] arrayValues;
+		private final int[] results;
+		private final int from, to;
+
+		Chunk(int[][] scalarColumns, IntArray[] arrayValues, int[] results, int from, int to) {
+			this.scalarColumns = scalarColumns;
+			this.arrayValues = arrayValues;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= chunkSize) {
+				evaluateChunk(scalarColumns, arrayValues, results, from, to);
+				return;
+			}
+			// split on a block boundary so chunks do not share a block
+			int mid = from + ((to - from) / 2 + BatchEvaluator.BLOCK - 1) / BatchEvaluator.BLOCK * BatchEvaluator.BLOCK;
+			if (mid >= to) {
+				mid = from + (to - from) / 2;
+			}
+			invokeAll(new Chunk(scalarColumns, arrayValues, results, from, mid),
+					new Chunk(scalarColumns, arrayValues, results, mid, to));
+		}
+	}
+}
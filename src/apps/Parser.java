@@ -0,0 +1,156 @@
+package apps;
+
+import structures.Stack;
+
+/**
+ * Turns the text of an expression into a tree of Nodes, in a single left to right
+ * pass over the tokens made by the Lexer. Operands and pending operators are kept on
+ * explicit stacks (shunting-yard), so nesting depth is not limited by recursion.
+ *
+ * Variables are resolved to slots in a symbol table; a variable that is not in the
+ * table yet is added to it.
+ */
+class Parser {
+
+	/**
+	 * Precedence of the unary minus, which is pushed on the operator stack as '~'
+	 */
+	private static final int UNARY = 3;
+
+	private final String expr;
+	private final SymbolTable symbols;
+
+	private final Stack<Node> operands = new Stack<Node>();
+	private final Stack<Character> operators = new Stack<Character>();
+	private final Stack<ArraySymbol> subscripted = new Stack<ArraySymbol>();
+
+	private Parser(String expr, SymbolTable symbols) {
+		this.expr = expr;
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Parses an expression.
+	 *
+	 * @param expr Expression text
+	 * @param symbols Symbol table in which variables are resolved
+	 * @return Root of the parsed tree
+	 * @throws IllegalArgumentException If the expression is malformed
+	 */
+	static Node parse(String expr, SymbolTable symbols) {
+		return new Parser(expr, symbols).parse();
+	}
+
+	private Node parse() {
+		Lexer tokens = Lexer.lex(expr);
+		boolean expectOperand = true;
+		for (int t = 0; t < tokens.count; t++) {
+			int pos = tokens.starts[t];
+			char ch = tokens.first(t);
+			switch (tokens.types[t]) {
+			case Lexer.CONSTANT:
+				checkOperand(expectOperand, pos);
+				operands.push(new Node.Constant(Integer.parseInt(expr, pos, pos + tokens.lengths[t], 10)));
+				expectOperand = false;
+				break;
+			case Lexer.SCALAR: {
+				checkOperand(expectOperand, pos);
+				String name = tokens.token(t);
+				operands.push(new Node.Scalar(name, symbols.addScalar(name).slot));
+				expectOperand = false;
+				break;
+			}
+			case Lexer.ARRAY:
+				checkOperand(expectOperand, pos);
+				subscripted.push(symbols.addArray(tokens.token(t)));
+				operators.push('[');
+				t++; // the '[' that follows
+				break;
+			case Lexer.OPEN:
+				if (ch == '[') { // only follows an array name
+					throw error("unexpected character '['", pos);
+				}
+				checkOperand(expectOperand, pos);
+				operators.push('(');
+				break;
+			case Lexer.CLOSE: {
+				if (expectOperand) {
+					throw error("missing operand", pos);
+				}
+				char open = ch == ')' ? '(' : '[';
+				while (!operators.isEmpty() && operators.peek() != '(' && operators.peek() != '[') {
+					reduce();
+				}
+				if (operators.isEmpty() || operators.pop() != open) {
+					throw error("unbalanced '" + ch + "'", pos);
+				}
+				if (open == '[') {
+					ArraySymbol as = subscripted.pop();
+					operands.push(new Node.Subscript(as.name, as.slot, operands.pop()));
+				}
+				break;
+			}
+			default: // OPERATOR
+				if (expectOperand) {
+					if (ch != '-') {
+						throw error("missing operand", pos);
+					}
+					operators.push('~');
+				} else {
+					int prec = precedence(ch);
+					while (!operators.isEmpty() && precedence(operators.peek()) >= prec) {
+						reduce();
+					}
+					operators.push(ch);
+					expectOperand = true;
+				}
+			}
+		}
+		int n = expr.length();
+		if (expectOperand) {
+			throw error("missing operand", n);
+		}
+		while (!operators.isEmpty()) {
+			char op = operators.peek();
+			if (op == '(' || op == '[') {
+				throw error("unbalanced '" + op + "'", n);
+			}
+			reduce();
+		}
+		return operands.pop();
+	}
+
+	/**
+	 * Pops the operator at the top of the stack and replaces its operands with a
+	 * single node.
+	 */
+	private void reduce() {
+		char op = operators.pop();
+		if (op == '~') {
+			operands.push(new Node.Negate(operands.pop()));
+			return;
+		}
+		Node right = operands.pop();
+		Node left = operands.pop();
+		operands.push(new Node.Binary(op, left, right));
+	}
+
+	private void checkOperand(boolean expectOperand, int pos) {
+		if (!expectOperand) {
+			throw error("missing operator", pos);
+		}
+	}
+
+	private static int precedence(char op) {
+		switch (op) {
+		case '~': return UNARY;
+		case '*': case '/': return 2;
+		case '+': case '-': return 1;
+		default: return 0;
+		}
+	}
+
+	private IllegalArgumentException error(String msg, int pos) {
+		return new IllegalArgumentException(msg + " at position " + pos + " in \"" + expr + "\"");
+	}
+}
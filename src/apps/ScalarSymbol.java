@@ -18,6 +18,11 @@ public class ScalarSymbol {
 	 * Integer value
 	 */
 	public int value;
+	
+	/**
+	 * Position of this symbol in its symbol table, -1 if it is not in one
+	 */
+	public int slot;
 
 	/**
 	 * Initializes this symbol with given name, and zero value
@@ -27,6 +32,7 @@ public class ScalarSymbol {
 	public ScalarSymbol(String name) {
 		this.name = name; 
 		value = 0;
+		slot = -1;
 	}
 	
 	/* (non-Javadoc)
@@ -46,5 +52,11 @@ public class ScalarSymbol {
 		ScalarSymbol ss = (ScalarSymbol)o;
 		return name.equals(ss.name);
 	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return name.hashCode();
+	}
 }
-
@@ -0,0 +1,365 @@
+package apps;
+
+import structures.ByteStack;
+import structures.IntArray;
+import structures.IntStack;
+import structures.LongStack;
+import structures.Stack;
+
+/**
+ * A parsed expression compiled to postfix code for a small stack machine. The program
+ * is a byte array of opcodes with a parallel int array of operands (constant values and
+ * symbol slots); it runs on an IntStack, so evaluation does no boxing and, given a
+ * reused stack, no allocation.
+ *
+ * The same code can be run with checked int, long or double arithmetic, as the typed
+ * eval methods of Node do, when it is compiled from a tree as parsed with compileTyped.
+ * Those runs keep their values on a LongStack, doubles as their raw bits.
+ *
+ * Compiling and running walk no tree by recursion and the stack is on the heap, so a
+ * StackMachine is how trees too deep for the recursive engines are evaluated: its
+ * memory grows linearly with the depth of the tree, whatever the thread stack size.
+ *
+ * A StackMachine is immutable and can be run by several threads at once, each with its
+ * own stack.
+ */
+class StackMachine implements ExpressionFunction {
+
+	static final byte CONST = 0;
+	static final byte SCALAR = 1;
+	static final byte SUBSCRIPT = 2;
+	static final byte NEG = 3;
+	static final byte ADD = 4;
+	static final byte SUB = 5;
+	static final byte MUL = 6;
+	static final byte DIV = 7;
+	static final byte STORE = 8;
+
+	/**
+	 * Or'ed into the opcodes of typed code inside a subscript, whose values are
+	 * integers even in double runs
+	 */
+	static final byte INDEX = 0x10;
+
+	private final byte[] code;
+	private final int[] args;
+
+	/**
+	 * Largest number of values on the stack while the program runs
+	 */
+	final int maxDepth;
+
+	private StackMachine(byte[] code, int[] args, int maxDepth) {
+		this.code = code;
+		this.args = args;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Compiles a tree to postfix code. The tree is walked with an explicit stack, so
+	 * its depth is not limited by recursion.
+	 *
+	 * @param tree Root of the parsed expression
+	 * @return Program that evaluates the expression
+	 */
+	static StackMachine compile(Node tree) {
+		return compile(tree, false);
+	}
+
+	/**
+	 * Compiles a tree as parsed, without shared values, to postfix code that can also
+	 * be run with checked int, long and double arithmetic.
+	 *
+	 * @param tree Root of the parsed expression
+	 * @return Program that evaluates the expression
+	 */
+	static StackMachine compileTyped(Node tree) {
+		return compile(tree, true);
+	}
+
+	private static StackMachine compile(Node tree, boolean typed) {
+		Node[] order = Node.postorder(tree);
+		ByteStack code = new ByteStack(order.length);
+		IntStack args = new IntStack(order.length);
+		// the code of a subtree is as long as the subtree and ends with its root, so the
+		// index of a subscript is the code just before it: count the subscripts that
+		// start and end around each position to find the code inside one
+		IntStack sizes = new IntStack();
+		int[] inside = typed ? new int[order.length + 1] : null;
+		int depth = 0;
+		int maxDepth = 0;
+		for (int pc = 0; pc < order.length; pc++) {
+			Node node = order[pc];
+			if (node instanceof Node.Constant) {
+				code.push(CONST);
+				args.push(((Node.Constant)node).value);
+				depth++;
+			} else if (node instanceof Node.Scalar) {
+				code.push(SCALAR);
+				args.push(((Node.Scalar)node).slot);
+				depth++;
+			} else if (node instanceof Node.Temp) {
+				code.push(SCALAR);
+				args.push(((Node.Temp)node).slot);
+				depth++;
+			} else if (node instanceof Node.Let) {
+				if (typed) {
+					throw new IllegalArgumentException("typed code cannot keep shared values");
+				}
+				code.push(STORE);
+				args.push(((Node.Let)node).slot);
+			} else if (node instanceof Node.Subscript) {
+				code.push(SUBSCRIPT);
+				args.push(((Node.Subscript)node).slot);
+				if (typed) {
+					inside[pc - sizes.peek()]++;
+					inside[pc]--;
+				}
+			} else if (node instanceof Node.Negate) {
+				code.push(NEG);
+				args.push(0);
+			} else {
+				code.push(opcode(((Node.Binary)node).op));
+				args.push(0);
+				depth--;
+			}
+			maxDepth = Math.max(maxDepth, depth);
+			if (typed) {
+				if (node instanceof Node.Binary) {
+					sizes.push(sizes.pop() + sizes.pop() + 1);
+				} else if (node instanceof Node.Subscript || node instanceof Node.Negate) {
+					sizes.push(sizes.pop() + 1);
+				} else {
+					sizes.push(1);
+				}
+			}
+		}
+		byte[] program = code.toArray();
+		if (typed) {
+			int subscripts = 0;
+			for (int pc = 0; pc < program.length; pc++) {
+				subscripts += inside[pc];
+				if (subscripts > 0) {
+					program[pc] |= INDEX;
+				}
+			}
+		}
+		return new StackMachine(program, args.toArray(), maxDepth);
+	}
+
+	private static byte opcode(char op) {
+		switch (op) {
+		case '+': return ADD;
+		case '-': return SUB;
+		case '*': return MUL;
+		default: return DIV;
+		}
+	}
+
+	/**
+	 * Runs the program.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot, followed by room for shared
+	 * subexpressions
+	 * @param arrays Array values, indexed by array slot
+	 * @param stack Operand stack, cleared before use; it is grown to maxDepth if needed
+	 * @return Value of the expression
+	 */
+	int run(int[] scalars, IntArray[] arrays, IntStack stack) {
+		stack.clear();
+		stack.ensureCapacity(maxDepth);
+		for (int pc = 0; pc < code.length; pc++) {
+			switch (code[pc]) {
+			case CONST:
+				stack.push(args[pc]);
+				break;
+			case SCALAR:
+				stack.push(scalars[args[pc]]);
+				break;
+			case SUBSCRIPT:
+				stack.push(arrays[args[pc]].get(stack.pop()));
+				break;
+			case NEG:
+				stack.push(-stack.pop());
+				break;
+			case STORE:
+				scalars[args[pc]] = stack.peek();
+				break;
+			default:
+				int r = stack.pop();
+				int l = stack.pop();
+				switch (code[pc]) {
+				case ADD: stack.push(l + r); break;
+				case SUB: stack.push(l - r); break;
+				case MUL: stack.push(l * r); break;
+				default: stack.push(l / r); break;
+				}
+				break;
+			}
+		}
+		return stack.pop();
+	}
+
+	/**
+	 * Runs code from compileTyped with int arithmetic that throws instead of
+	 * overflowing.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @param stack Operand stack, cleared before use; it is grown to maxDepth if needed
+	 * @return Value of the expression
+	 * @throws ArithmeticException If an operation overflows or divides by zero
+	 */
+	int runExact(int[] scalars, IntArray[] arrays, LongStack stack) {
+		stack.clear();
+		stack.ensureCapacity(maxDepth);
+		for (int pc = 0; pc < code.length; pc++) {
+			int op = code[pc] & ~INDEX;
+			switch (op) {
+			case CONST:
+				stack.push(args[pc]);
+				break;
+			case SCALAR:
+				stack.push(scalars[args[pc]]);
+				break;
+			case SUBSCRIPT:
+				stack.push(arrays[args[pc]].get(stack.pop()));
+				break;
+			case NEG:
+				stack.push(Math.negateExact((int)stack.pop()));
+				break;
+			default:
+				int r = (int)stack.pop();
+				int l = (int)stack.pop();
+				switch (op) {
+				case ADD: stack.push(Math.addExact(l, r)); break;
+				case SUB: stack.push(Math.subtractExact(l, r)); break;
+				case MUL: stack.push(Math.multiplyExact(l, r)); break;
+				default: stack.push(Node.divideExact(l, r)); break;
+				}
+				break;
+			}
+		}
+		return (int)stack.pop();
+	}
+
+	/**
+	 * Runs code from compileTyped with long arithmetic.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @param stack Operand stack, cleared before use; it is grown to maxDepth if needed
+	 * @param exact Whether to throw instead of overflowing
+	 * @return Value of the expression
+	 * @throws ArithmeticException If an operation divides by zero, or overflows while
+	 * exact
+	 */
+	long runLong(int[] scalars, IntArray[] arrays, LongStack stack, boolean exact) {
+		stack.clear();
+		stack.ensureCapacity(maxDepth);
+		for (int pc = 0; pc < code.length; pc++) {
+			int op = code[pc] & ~INDEX;
+			switch (op) {
+			case CONST:
+				stack.push(args[pc]);
+				break;
+			case SCALAR:
+				stack.push(scalars[args[pc]]);
+				break;
+			case SUBSCRIPT:
+				stack.push(arrays[args[pc]].get(stack.pop()));
+				break;
+			case NEG:
+				stack.push(exact ? Math.negateExact(stack.pop()) : -stack.pop());
+				break;
+			default:
+				long r = stack.pop();
+				long l = stack.pop();
+				if (exact) {
+					switch (op) {
+					case ADD: stack.push(Math.addExact(l, r)); break;
+					case SUB: stack.push(Math.subtractExact(l, r)); break;
+					case MUL: stack.push(Math.multiplyExact(l, r)); break;
+					default: stack.push(Node.divideExact(l, r)); break;
+					}
+				} else {
+					switch (op) {
+					case ADD: stack.push(l + r); break;
+					case SUB: stack.push(l - r); break;
+					case MUL: stack.push(l * r); break;
+					default: stack.push(l / r); break;
+					}
+				}
+				break;
+			}
+		}
+		return stack.pop();
+	}
+
+	/**
+	 * Runs code from compileTyped with double arithmetic. Subscripts are computed
+	 * with long arithmetic; other values are kept on the stack as their raw bits.
+	 *
+	 * @param scalars Scalar values, indexed by scalar slot
+	 * @param arrays Array values, indexed by array slot
+	 * @param stack Operand stack, cleared before use; it is grown to maxDepth if needed
+	 * @return Value of the expression
+	 * @throws ArithmeticException If a subscript divides by zero
+	 */
+	double runDouble(int[] scalars, IntArray[] arrays, LongStack stack) {
+		stack.clear();
+		stack.ensureCapacity(maxDepth);
+		for (int pc = 0; pc < code.length; pc++) {
+			boolean index = (code[pc] & INDEX) != 0;
+			int op = code[pc] & ~INDEX;
+			switch (op) {
+			case CONST:
+				stack.push(index ? args[pc] : bits(args[pc]));
+				break;
+			case SCALAR:
+				stack.push(index ? scalars[args[pc]] : bits(scalars[args[pc]]));
+				break;
+			case SUBSCRIPT:
+				int value = arrays[args[pc]].get(stack.pop());
+				stack.push(index ? value : bits(value));
+				break;
+			case NEG:
+				stack.push(index ? -stack.pop() : bits(-Double.longBitsToDouble(stack.pop())));
+				break;
+			default:
+				if (index) {
+					long r = stack.pop();
+					long l = stack.pop();
+					switch (op) {
+					case ADD: stack.push(l + r); break;
+					case SUB: stack.push(l - r); break;
+					case MUL: stack.push(l * r); break;
+					default: stack.push(l / r); break;
+					}
+				} else {
+					double r = Double.longBitsToDouble(stack.pop());
+					double l = Double.longBitsToDouble(stack.pop());
+					switch (op) {
+					case ADD: stack.push(bits(l + r)); break;
+					case SUB: stack.push(bits(l - r)); break;
+					case MUL: stack.push(bits(l * r)); break;
+					default: stack.push(bits(l / r)); break;
+					}
+				}
+				break;
+			}
+		}
+		return Double.longBitsToDouble(stack.pop());
+	}
+
+	private static long bits(double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	/**
+	 * Runs the program on a new stack.
+	 */
+	public int eval(int[] scalars, IntArray[] arrays) {
+		return run(scalars, arrays, new IntStack(maxDepth));
+	}
+}
@@ -0,0 +1,439 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import structures.IntArray;
+
+/**
+ * Reads a symbol values file straight from a channel, in the same format as
+ * Expression.loadSymbolValues(Scanner): one symbol per line, either
+ * <pre>
+ *     name value
+ *     name length (index,value) (index,value) ...
+ * </pre>
+ * Numbers are parsed byte by byte and names are looked up by their bytes, so nothing
+ * is allocated per line or per token, apart from the storage of each array symbol,
+ * which is dense or sparse depending on how many entries the line sets. Lines for
+ * symbols that are not in the table are skipped, unless the reader is asked to add
+ * every symbol it finds: once the leading name is not found, the rest of the line is
+ * passed over eight bytes at a time. A symbol on more than one line gets the value of
+ * its first line, so reading stops as soon as every symbol of the table has been given
+ * a value.
+ *
+ * A file with an up-to-date SymbolIndex next to it is not read through at all: the
+ * reader seeks to the lines of the symbols of the table and reads only those.
+ *
+ * A file that starts with the magic number of a SymbolSnapshot is loaded as a
+ * snapshot instead.
+ */
+class SymbolFileReader {
+
+	/**
+	 * Size of the read buffer used for channels that are not memory-mapped
+	 */
+	private static final int BUFFER = 1 << 16;
+
+	// eight newlines, for finding one in a long read from the buffer
+	private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buf;
+	private final boolean addMissing;
+	private byte[] name = new byte[64];
+	private int line = 1;
+	private int loaded;
+	private long bytes;
+
+	// which symbols have been given a value, by slot, and how many have not; -1 when
+	// adding symbols, which reads every line
+	private boolean[] scalarsGiven;
+	private boolean[] arraysGiven;
+	private int remaining;
+
+	// offset of the line being read when seeking through an index, otherwise -1
+	private long lineStart = -1;
+
+	private SymbolFileReader(ReadableByteChannel channel, ByteBuffer buf, boolean addMissing) {
+		this.channel = channel;
+		this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.addMissing = addMissing;
+	}
+
+	/**
+	 * Loads values from a file. Files up to 2GB are memory-mapped and parsed in place;
+	 * larger files are read through a buffer.
+	 *
+	 * @param file Symbol values file
+	 * @param symbols Symbols to load values for
+	 * @throws IOException If the file cannot be read or is malformed
+	 */
+	static void load(Path file, SymbolTable symbols) throws IOException {
+		load(file, symbols, false);
+	}
+
+	/**
+	 * Loads values from a file as load(Path, SymbolTable) does, adding a symbol to the
+	 * table for every name in the file that is not in it yet.
+	 *
+	 * @param file Symbol values file
+	 * @param symbols Symbols to load values for, and add to
+	 * @throws IOException If the file cannot be read or is malformed
+	 */
+	static void loadAll(Path file, SymbolTable symbols) throws IOException {
+		load(file, symbols, true);
+	}
+
+	private static void load(Path file, SymbolTable symbols, boolean addMissing) throws IOException {
+		long start = Metrics.start();
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (!isSnapshot(ch)) {
+				long size = ch.size();
+				SymbolFileReader reader;
+				if (size <= Integer.MAX_VALUE) {
+					reader = new SymbolFileReader(null, ch.map(FileChannel.MapMode.READ_ONLY, 0, size), addMissing);
+				} else {
+					ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+					buf.flip();
+					reader = new SymbolFileReader(ch, buf, addMissing);
+				}
+				SymbolIndex index = addMissing ? null : SymbolIndex.open(file, size);
+				if (index == null || !reader.loadIndexed(symbols, index)) {
+					reader.load(symbols);
+				}
+				Metrics.loaded(start, file, reader.loaded, reader.bytes);
+				return;
+			}
+		}
+		// a snapshot opens the file itself, writable if it can be for private mappings,
+		// and records its own metrics
+		SymbolSnapshot.load(file, symbols, addMissing);
+	}
+
+	private static boolean isSnapshot(FileChannel ch) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		while (magic.hasRemaining() && ch.read(magic, magic.position()) > 0) {
+		}
+		return !magic.hasRemaining() && magic.getInt(0) == SymbolSnapshot.MAGIC;
+	}
+
+	/**
+	 * Loads values from a channel, reading it until every symbol of the table has a
+	 * value or the channel ends. The channel is not closed.
+	 *
+	 * @param channel Channel positioned at the start of the values
+	 * @param symbols Symbols to load values for
+	 * @throws IOException If the channel cannot be read or the input is malformed
+	 */
+	static void load(ReadableByteChannel channel, SymbolTable symbols) throws IOException {
+		long start = Metrics.start();
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+		buf.flip();
+		SymbolFileReader reader = new SymbolFileReader(channel, buf, false);
+		reader.load(symbols);
+		Metrics.loaded(start, channel, reader.loaded, reader.bytes);
+	}
+
+	private void load(SymbolTable symbols) throws IOException {
+		track(symbols);
+		while (remaining != 0) {
+			skipBlanks();
+			int c = peek();
+			if (c == -1) {
+				break;
+			}
+			if (c == '\n') {
+				nextLine();
+				continue;
+			}
+			value(symbols, readName());
+		}
+		if (channel == null) {
+			bytes += buf.position();
+		}
+	}
+
+	/**
+	 * Reads the lines of the symbols of the table by seeking to them through an index.
+	 *
+	 * @return false if the index turned out not to match the file, in which case
+	 * nothing more is read
+	 */
+	private boolean loadIndexed(SymbolTable symbols, SymbolIndex index) throws IOException {
+		track(symbols);
+		for (ScalarSymbol ss : symbols.scalars) {
+			if (!loadIndexed(symbols, index, ss.name, SymbolIndex.SCALAR)) {
+				return false;
+			}
+		}
+		for (ArraySymbol as : symbols.arrays) {
+			if (!loadIndexed(symbols, index, as.name, SymbolIndex.ARRAY)) {
+				return false;
+			}
+		}
+		lineStart = -1;
+		return true;
+	}
+
+	private boolean loadIndexed(SymbolTable symbols, SymbolIndex index, String symbol, int kind) throws IOException {
+		byte[] key = symbol.getBytes(StandardCharsets.UTF_8);
+		long offset = index.find(key, kind);
+		if (offset < 0) { // not in the file
+			return true;
+		}
+		seek(offset);
+		int len = readName();
+		if (len != key.length || !Arrays.equals(name, 0, len, key, 0, len)) {
+			seek(0);
+			lineStart = -1;
+			return false;
+		}
+		value(symbols, len);
+		if (channel == null) {
+			bytes += buf.position() - offset;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts keeping track of which symbols of the table have been given a value, so
+	 * that later lines for them are skipped and reading can stop once all of them have.
+	 * Counts from an indexed load that was given up are dropped with the marks.
+	 */
+	private void track(SymbolTable symbols) {
+		loaded = 0;
+		bytes = 0;
+		scalarsGiven = new boolean[symbols.scalars.size()];
+		arraysGiven = new boolean[symbols.arrays.size()];
+		remaining = addMissing ? -1 : scalarsGiven.length + arraysGiven.length;
+	}
+
+	/**
+	 * Reads the rest of a line whose name has been read into the name buffer, and gives
+	 * the symbol of that name its value. Stops at the end of the line.
+	 *
+	 * @param len Length of the name
+	 */
+	private void value(SymbolTable symbols, int len) throws IOException {
+		ScalarSymbol ssymbol = symbols.scalar(name, 0, len);
+		ArraySymbol asymbol = symbols.array(name, 0, len);
+		if (ssymbol == null && asymbol == null && !addMissing) {
+			skipLine();
+			return;
+		}
+		skipBlanks();
+		long num = readLong();
+		skipBlanks();
+		int c = peek();
+		if (c == -1 || c == '\n') { // scalar symbol
+			if (ssymbol == null && addMissing) {
+				ssymbol = symbols.addScalar(new String(name, 0, len, StandardCharsets.UTF_8));
+			}
+			if (ssymbol != null && !isGiven(scalarsGiven, ssymbol.slot)) {
+				ssymbol.value = toInt(num);
+				scalarsGiven = given(scalarsGiven, ssymbol.slot);
+			}
+			return;
+		}
+		if (asymbol == null && addMissing) {
+			asymbol = symbols.addArray(new String(name, 0, len, StandardCharsets.UTF_8));
+		}
+		if (asymbol == null || isGiven(arraysGiven, asymbol.slot)) {
+			skipLine();
+			return;
+		}
+		// array symbol, followed by (index,val) pairs
+		IntArray values = IntArray.create(num);
+		while ((c = peek()) != -1 && c != '\n') {
+			expect('(');
+			skipBlanks();
+			long index = readLong();
+			skipBlanks();
+			expect(',');
+			skipBlanks();
+			int val = toInt(readLong());
+			skipBlanks();
+			expect(')');
+			skipBlanks();
+			if (index < 0 || index >= num) {
+				throw error("index " + index + " out of bounds for " + asymbol.name + " of length " + num);
+			}
+			values.set(index, val);
+		}
+		asymbol.setStorage(values.compact()); // dense or sparse, whichever is smaller
+		arraysGiven = given(arraysGiven, asymbol.slot);
+	}
+
+	private static boolean isGiven(boolean[] given, int slot) {
+		return slot < given.length && given[slot];
+	}
+
+	/**
+	 * Marks a symbol as given a value.
+	 *
+	 * @return Marks, grown if the symbol was added to the table since they were made
+	 */
+	private boolean[] given(boolean[] given, int slot) {
+		if (slot >= given.length) {
+			given = Arrays.copyOf(given, Math.max(2 * given.length, slot + 1));
+		}
+		given[slot] = true;
+		loaded++;
+		if (remaining > 0) {
+			remaining--;
+		}
+		return given;
+	}
+
+	/**
+	 * Reads a name into the name buffer.
+	 *
+	 * @return Length of the name
+	 */
+	private int readName() throws IOException {
+		int len = 0;
+		do {
+			int pos = buf.position();
+			int limit = buf.limit();
+			for (; pos < limit; pos++) {
+				byte b = buf.get(pos);
+				if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+					buf.position(pos);
+					return len;
+				}
+				if (len == name.length) {
+					byte[] bigger = new byte[len * 2];
+					System.arraycopy(name, 0, bigger, 0, len);
+					name = bigger;
+				}
+				name[len++] = b;
+			}
+			buf.position(limit);
+		} while (fill());
+		return len;
+	}
+
+	private long readLong() throws IOException {
+		boolean negative = false;
+		if (peek() == '-') {
+			negative = true;
+			buf.get();
+		}
+		int c = peek();
+		if (c < '0' || c > '9') {
+			throw error("expected a number");
+		}
+		long value = 0;
+		while ((c = peek()) >= '0' && c <= '9') {
+			if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+				throw error("number out of range");
+			}
+			value = value * 10 + (c - '0');
+			buf.get();
+		}
+		return negative ? -value : value;
+	}
+
+	private int toInt(long value) throws IOException {
+		if (value != (int)value) {
+			throw error("value " + value + " out of range for an int");
+		}
+		return (int)value;
+	}
+
+	private void expect(char ch) throws IOException {
+		if (peek() != ch) {
+			throw error("expected '" + ch + "'");
+		}
+		buf.get();
+	}
+
+	private void skipBlanks() throws IOException {
+		int c;
+		while ((c = peek()) == ' ' || c == '\t' || c == '\r') {
+			buf.get();
+		}
+	}
+
+	/**
+	 * Moves to the end of the line. Most lines of a large file are skipped, so this
+	 * looks for the newline a word at a time.
+	 */
+	private void skipLine() throws IOException {
+		do {
+			int limit = buf.limit();
+			int pos = buf.position();
+			for (; pos + 8 <= limit; pos += 8) {
+				long word = buf.getLong(pos) ^ NEWLINES;
+				long found = (word - 0x0101010101010101L) & ~word & 0x8080808080808080L;
+				if (found != 0) {
+					pos += Long.numberOfTrailingZeros(found) >>> 3;
+					buf.position(pos);
+					return;
+				}
+			}
+			for (; pos < limit; pos++) {
+				if (buf.get(pos) == '\n') {
+					buf.position(pos);
+					return;
+				}
+			}
+			buf.position(limit);
+		} while (fill());
+	}
+
+	/**
+	 * Moves to the start of the line at an offset of the file.
+	 */
+	private void seek(long offset) throws IOException {
+		if (channel == null) {
+			buf.position((int)offset);
+		} else {
+			((FileChannel)channel).position(offset);
+			buf.clear().flip();
+		}
+		lineStart = offset;
+	}
+
+	private void nextLine() throws IOException {
+		buf.get();
+		line++;
+	}
+
+	/**
+	 * @return Next byte without consuming it, or -1 at the end of input
+	 */
+	private int peek() throws IOException {
+		if (!buf.hasRemaining() && !fill()) {
+			return -1;
+		}
+		return buf.get(buf.position()) & 0xff;
+	}
+
+	private boolean fill() throws IOException {
+		if (channel == null) {
+			return false;
+		}
+		buf.clear();
+		int n;
+		do {
+			n = channel.read(buf);
+		} while (n == 0);
+		buf.flip();
+		if (n > 0) {
+			bytes += n;
+		}
+		return n > 0;
+	}
+
+	private IOException error(String msg) {
+		return new IOException(msg + (lineStart < 0 ? " at line " + line : " in the line at byte " + lineStart));
+	}
+}
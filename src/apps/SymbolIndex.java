@@ -0,0 +1,306 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A sidecar index of a text symbol values file, giving the byte offset of the line of
+ * every symbol, so that a loader that needs only a few symbols of a large file can
+ * seek to their lines instead of reading the whole file. The index of values.txt is
+ * values.txt.idx, and is made with
+ * <pre>
+ *     java apps.SymbolIndex values.txt
+ * </pre>
+ * All numbers are little-endian:
+ * <pre>
+ *     header   magic 0x89 'E' 'X' 'I', int version, long size of the values file,
+ *              long its modification time in ms, int entry count, int 0
+ *     entries  per symbol, in unsigned byte order of the names, scalar before
+ *              array: long offset of the line, int offset of the name in the names
+ *              block, int its length, int kind, SCALAR or ARRAY, int 0
+ *     names    UTF-8 bytes of the names
+ * </pre>
+ * An index is only used while the size and modification time of the values file are
+ * those it was made for; when the file is changed the index is ignored until it is
+ * made again. A scalar and an array can have the same name, so a name is indexed once
+ * for its scalar lines and once for its array lines, an array line being one with
+ * (index,value) pairs after the length. A scalar or array on more than one line is
+ * indexed at the first of them, as the loaders give it the value of that line.
+ */
+class SymbolIndex {
+
+	/**
+	 * First four bytes of every index
+	 */
+	static final int MAGIC = 0x49584589; // 0x89 'E' 'X' 'I', little-endian
+
+	static final int VERSION = 3; // 1 indexed the last line of a repeated name, 2 did not tell scalars from arrays
+
+	/**
+	 * Kind of an entry for the line of a scalar
+	 */
+	static final int SCALAR = 0;
+
+	/**
+	 * Kind of an entry for the line of an array
+	 */
+	static final int ARRAY = 1;
+
+	private static final int HEADER = 32;
+	private static final int ENTRY = 24;
+	private static final int BUFFER = 1 << 16;
+
+	private final ByteBuffer index;
+	private final int count;
+	private final int names;
+
+	private SymbolIndex(ByteBuffer index, int count) {
+		this.index = index;
+		this.count = count;
+		names = HEADER + count * ENTRY;
+	}
+
+	/**
+	 * @param values Symbol values file
+	 * @return Path of its index
+	 */
+	static Path sidecar(Path values) {
+		return values.resolveSibling(values.getFileName() + ".idx");
+	}
+
+	/**
+	 * Opens the index of a values file, if it has an up-to-date one.
+	 *
+	 * @param values Symbol values file
+	 * @param size Size of the values file
+	 * @return Index, or null if there is none or it was made for another version of the
+	 * file
+	 * @throws IOException If the index cannot be read
+	 */
+	static SymbolIndex open(Path values, long size) throws IOException {
+		Path file = sidecar(values);
+		FileChannel ch;
+		try {
+			ch = FileChannel.open(file, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try (ch) {
+			long length = ch.size();
+			if (length < HEADER || length > Integer.MAX_VALUE) {
+				return null;
+			}
+			ByteBuffer index = ch.map(FileChannel.MapMode.READ_ONLY, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+			if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION || index.getLong(8) != size
+					|| index.getLong(16) != Files.getLastModifiedTime(values).toMillis()) {
+				return null;
+			}
+			int count = index.getInt(24);
+			if (count < 0 || HEADER + (long)count * ENTRY > length) {
+				throw new IOException(file + " is truncated");
+			}
+			return new SymbolIndex(index, count);
+		}
+	}
+
+	/**
+	 * Looks up the line of a symbol.
+	 *
+	 * @param name UTF-8 bytes of the symbol name
+	 * @param kind SCALAR or ARRAY
+	 * @return Offset of the line, at the start of the name, or -1 if the file has no
+	 * line for the symbol
+	 */
+	long find(byte[] name, int kind) {
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int entry = HEADER + mid * ENTRY;
+			int cmp = compare(names + index.getInt(entry + 8), index.getInt(entry + 12), name);
+			if (cmp == 0) {
+				cmp = index.getInt(entry + 16) - kind;
+			}
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return index.getLong(entry);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the name at an offset of the index with a name, by unsigned bytes.
+	 */
+	private int compare(int offset, int length, byte[] name) {
+		int n = Math.min(length, name.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = (index.get(offset + i) & 0xff) - (name[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return length - name.length;
+	}
+
+	/**
+	 * Makes the index of a symbol values file, replacing any index it had. The file is
+	 * read once, and only the leading name of each line and the number of its tokens are
+	 * looked at.
+	 *
+	 * @param values Symbol values file, in the text format of
+	 * Expression.loadSymbolValues(Scanner)
+	 * @return Number of symbols indexed
+	 * @throws IOException If the values file cannot be read or the index written
+	 */
+	static int write(Path values) throws IOException {
+		long modified = Files.getLastModifiedTime(values).toMillis();
+		long size;
+		byte[] blob = new byte[BUFFER];
+		int blobSize = 0;
+		long[] lines = new long[1024];
+		int[] starts = new int[1024];
+		byte[] kinds = new byte[1024];
+		int count = 0;
+		try (FileChannel ch = FileChannel.open(values, StandardOpenOption.READ)) {
+			size = ch.size();
+			ByteBuffer buf = ByteBuffer.allocate(BUFFER);
+			byte[] bytes = buf.array();
+			long offset = 0;
+			int tokens = 0; // tokens started so far on this line
+			boolean inToken = false;
+			boolean inName = false;
+			int n;
+			while ((n = ch.read(buf)) >= 0) {
+				for (int i = 0; i < n; i++, offset++) {
+					byte b = bytes[i];
+					if (b == '\n') {
+						tokens = 0;
+						inToken = false;
+						inName = false;
+						continue;
+					}
+					if (b == ' ' || b == '\t' || b == '\r') {
+						inToken = false;
+						inName = false;
+						continue;
+					}
+					if (!inToken) {
+						inToken = true;
+						if (tokens++ == 0) { // first byte of a name
+							if (count == lines.length) {
+								lines = Arrays.copyOf(lines, 2 * count);
+								starts = Arrays.copyOf(starts, 2 * count);
+								kinds = Arrays.copyOf(kinds, 2 * count);
+							}
+							lines[count] = offset;
+							starts[count++] = blobSize;
+							inName = true;
+						} else if (tokens == 3) { // an (index,value) pair after the length
+							kinds[count - 1] = ARRAY;
+						}
+					}
+					if (inName) {
+						if (blobSize == blob.length) {
+							if (blobSize == Integer.MAX_VALUE - 8) {
+								throw new IOException("names of " + values + " too long to index");
+							}
+							blob = Arrays.copyOf(blob, (int)Math.min(2L * blobSize, Integer.MAX_VALUE - 8));
+						}
+						blob[blobSize++] = b;
+					}
+				}
+				buf.clear();
+			}
+		}
+
+		// sort by name, then by kind, then by line, and keep the first line of each symbol
+		final byte[] names = blob;
+		final int[] nameStarts = Arrays.copyOf(starts, count + 1);
+		nameStarts[count] = blobSize;
+		final long[] lineOffsets = lines;
+		final byte[] lineKinds = kinds;
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (x, y) -> {
+			int cmp = Arrays.compareUnsigned(names, nameStarts[x], nameStarts[x + 1], names, nameStarts[y], nameStarts[y + 1]);
+			if (cmp == 0) {
+				cmp = lineKinds[x] - lineKinds[y];
+			}
+			return cmp != 0 ? cmp : Long.compare(lineOffsets[x], lineOffsets[y]);
+		});
+		int unique = 0;
+		int previous = -1;
+		for (int i = 0; i < count; i++) {
+			int x = order[i];
+			if (previous >= 0 && lineKinds[x] == lineKinds[previous]
+					&& Arrays.equals(names, nameStarts[x], nameStarts[x + 1], names, nameStarts[previous], nameStarts[previous + 1])) {
+				continue;
+			}
+			order[unique++] = x;
+			previous = x;
+		}
+
+		long length = HEADER + (long)unique * ENTRY + blobSize;
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("index of " + values + " would be larger than 2GB");
+		}
+		ByteBuffer out = ByteBuffer.allocate((int)length).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putLong(size);
+		out.putLong(modified);
+		out.putInt(unique);
+		out.putInt(0);
+		for (int i = 0; i < unique; i++) {
+			int x = order[i];
+			out.putLong(lineOffsets[x]);
+			out.putInt(nameStarts[x]);
+			out.putInt(nameStarts[x + 1] - nameStarts[x]);
+			out.putInt(lineKinds[x]);
+			out.putInt(0);
+		}
+		out.put(names, 0, blobSize);
+		out.flip();
+		try (FileChannel ch = FileChannel.open(sidecar(values), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (out.hasRemaining()) {
+				ch.write(out);
+			}
+		}
+		return unique;
+	}
+
+	/**
+	 * Makes the index of a symbol values file.
+	 *
+	 * <pre>
+	 *     java apps.SymbolIndex values.txt
+	 * </pre>
+	 *
+	 * @param args Symbol values file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: java apps.SymbolIndex <symbol values file>");
+			System.exit(2);
+		}
+		long start = System.nanoTime();
+		Path values = Paths.get(args[0]);
+		int count = write(values);
+		System.out.println("indexed " + count + " symbols of " + args[0] + " in " + sidecar(values)
+				+ " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
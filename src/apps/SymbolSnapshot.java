@@ -0,0 +1,395 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import structures.BufferIntArray;
+import structures.BufferSparseIntArray;
+import structures.DenseIntArray;
+import structures.IntArray;
+import structures.SparseIntArray;
+
+/**
+ * A binary snapshot of loaded symbol values, which loads by memory-mapping the file
+ * instead of parsing it. All numbers are little-endian:
+ *
+ * <pre>
+ *     header      magic 0x89 'E' 'X' 'S', int version, int scalar count, int array count
+ *     name index  per symbol, scalars then arrays: unsigned short length, UTF-8 bytes
+ *     scalars     one int per scalar                                  (8-byte aligned)
+ *     directory   per array: int kind, int 0, long length,            (8-byte aligned)
+ *                 long entries, long offset of its block
+ *     blocks      dense: length ints; sparse: entries ascending long  (8-byte aligned)
+ *                 indexes, then entries int values
+ * </pre>
+ *
+ * Scalar values are copied into their symbols. Array values are not copied at all: an
+ * array symbol is bound to a BufferIntArray or BufferSparseIntArray over the mapped
+ * block. Blocks are mapped copy-on-write when the file can be opened for writing, so
+ * that values can still be changed in memory, and read-only otherwise.
+ *
+ * SymbolFileReader recognizes snapshots by their magic number, so everything that
+ * loads a symbol values file from a Path accepts a snapshot as well.
+ */
+class SymbolSnapshot {
+
+	/**
+	 * First four bytes of every snapshot; 0x89 is never the start of a text file
+	 */
+	static final int MAGIC = 0x53584589; // 0x89 'E' 'X' 'S', little-endian
+
+	static final int VERSION = 1;
+
+	static final int DENSE = 0;
+	static final int SPARSE = 1;
+
+	private static final int DIRECTORY_ENTRY = 32;
+
+	/**
+	 * Size of the write buffer, room for the longest name
+	 */
+	private static final int BUFFER = 1 << 17;
+
+	/**
+	 * Writes the values of the symbols of a table to a snapshot. Arrays with no values
+	 * loaded are left out.
+	 *
+	 * @param symbols Symbols to write
+	 * @param file Snapshot file, replaced if it exists
+	 * @throws IOException If the file cannot be written
+	 */
+	static void write(SymbolTable symbols, Path file) throws IOException {
+		int arrayCount = 0;
+		for (ArraySymbol as : symbols.arrays) {
+			if (as.storage() != null) {
+				arrayCount++;
+			}
+		}
+		ArraySymbol[] arrays = new ArraySymbol[arrayCount];
+		int a = 0;
+		for (ArraySymbol as : symbols.arrays) {
+			if (as.storage() != null) {
+				arrays[a++] = as;
+			}
+		}
+
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Output out = new Output(ch);
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(symbols.scalars.size());
+			out.putInt(arrays.length);
+			for (ScalarSymbol ss : symbols.scalars) {
+				out.putName(ss.name);
+			}
+			for (ArraySymbol as : arrays) {
+				out.putName(as.name);
+			}
+			out.align();
+			for (ScalarSymbol ss : symbols.scalars) {
+				out.putInt(ss.value);
+			}
+			out.align();
+
+			long offset = out.position + (long)arrays.length * DIRECTORY_ENTRY;
+			for (ArraySymbol as : arrays) {
+				IntArray values = as.storage();
+				long entries = sparseEntries(values);
+				out.putInt(entries < 0 ? DENSE : SPARSE);
+				out.putInt(0);
+				out.putLong(values.length());
+				out.putLong(entries < 0 ? values.length() : entries);
+				out.putLong(offset);
+				offset += align(entries < 0 ? values.length() * 4 : entries * 12);
+			}
+			for (ArraySymbol as : arrays) {
+				putBlock(out, as.storage());
+				out.align();
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * @return Number of entries set if the array is stored sparse, -1 if it is dense
+	 */
+	private static long sparseEntries(IntArray values) {
+		if (values instanceof SparseIntArray) {
+			return ((SparseIntArray)values).size();
+		}
+		if (values instanceof BufferSparseIntArray) {
+			return ((BufferSparseIntArray)values).size();
+		}
+		return -1;
+	}
+
+	private static void putBlock(Output out, IntArray values) throws IOException {
+		if (values instanceof DenseIntArray) {
+			for (int v : ((DenseIntArray)values).values) {
+				out.putInt(v);
+			}
+		} else if (values instanceof SparseIntArray) {
+			long[] indexes = ((SparseIntArray)values).indexes();
+			for (long index : indexes) {
+				out.putLong(index);
+			}
+			for (long index : indexes) {
+				out.putInt(values.get(index));
+			}
+		} else if (values instanceof BufferSparseIntArray) {
+			BufferSparseIntArray sparse = (BufferSparseIntArray)values;
+			for (int i = 0; i < sparse.size(); i++) {
+				out.putLong(sparse.indexAt(i));
+			}
+			for (int i = 0; i < sparse.size(); i++) {
+				out.putInt(sparse.valueAt(i));
+			}
+		} else {
+			for (long i = 0; i < values.length(); i++) {
+				out.putInt(values.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Loads values from a snapshot into the symbols of a table. Symbols in the
+	 * snapshot but not in the table are skipped.
+	 *
+	 * @param file Snapshot file
+	 * @param symbols Symbols to load values for
+	 * @throws IOException If the file cannot be read or is not a valid snapshot
+	 */
+	static void load(Path file, SymbolTable symbols) throws IOException {
+		load(file, symbols, false);
+	}
+
+	/**
+	 * Loads values from a snapshot into the symbols of a table, optionally adding
+	 * every symbol of the snapshot that is not in the table yet.
+	 *
+	 * @param file Snapshot file
+	 * @param symbols Symbols to load values for
+	 * @param addMissing Whether to add symbols that are not in the table
+	 * @throws IOException If the file cannot be read or is not a valid snapshot
+	 */
+	static void load(Path file, SymbolTable symbols, boolean addMissing) throws IOException {
+		long start = Metrics.start();
+		int loaded = 0;
+		FileChannel ch;
+		FileChannel.MapMode mode;
+		try {
+			ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			mode = FileChannel.MapMode.PRIVATE;
+		} catch (IOException | SecurityException e) { // read-only file
+			ch = FileChannel.open(file, StandardOpenOption.READ);
+			mode = FileChannel.MapMode.READ_ONLY;
+		}
+		try {
+			long size = ch.size();
+			ByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE)).order(ByteOrder.LITTLE_ENDIAN);
+			if (size < 16 || head.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a symbol snapshot");
+			}
+			if (head.getInt(4) != VERSION) {
+				throw new IOException(file + " has snapshot version " + head.getInt(4) + ", expected " + VERSION);
+			}
+			int scalarCount = head.getInt(8);
+			int arrayCount = head.getInt(12);
+			if (scalarCount < 0 || arrayCount < 0) {
+				throw new IOException(file + " is corrupt: negative symbol count");
+			}
+			head.position(16);
+
+			byte[] name = new byte[64];
+			ScalarSymbol[] scalars = new ScalarSymbol[scalarCount];
+			for (int i = 0; i < scalarCount; i++) {
+				int len = nameLength(head);
+				if (len > name.length) {
+					name = new byte[len];
+				}
+				head.get(name, 0, len);
+				scalars[i] = symbols.scalar(name, 0, len);
+				if (scalars[i] == null && addMissing) {
+					scalars[i] = symbols.addScalar(new String(name, 0, len, StandardCharsets.UTF_8));
+				}
+			}
+			ArraySymbol[] arrays = new ArraySymbol[arrayCount];
+			for (int i = 0; i < arrayCount; i++) {
+				int len = nameLength(head);
+				if (len > name.length) {
+					name = new byte[len];
+				}
+				head.get(name, 0, len);
+				arrays[i] = symbols.array(name, 0, len);
+				if (arrays[i] == null && addMissing) {
+					arrays[i] = symbols.addArray(new String(name, 0, len, StandardCharsets.UTF_8));
+				}
+			}
+
+			int pos = (int)align(head.position());
+			for (int i = 0; i < scalarCount; i++) {
+				if (scalars[i] != null) {
+					scalars[i].value = head.getInt(pos);
+					loaded++;
+				}
+				pos += 4;
+			}
+			pos = (int)align(pos);
+			for (int i = 0; i < arrayCount; i++, pos += DIRECTORY_ENTRY) {
+				if (arrays[i] == null) {
+					continue;
+				}
+				int kind = head.getInt(pos);
+				long length = head.getLong(pos + 8);
+				long entries = head.getLong(pos + 16);
+				long offset = head.getLong(pos + 24);
+				long bytes = kind == DENSE ? length * 4 : entries * 12;
+				if (length < 0 || entries < 0 || offset < 0 || offset + bytes > size || (kind != DENSE && kind != SPARSE)) {
+					throw new IOException(file + " is corrupt: bad directory entry for " + arrays[i].name);
+				}
+				arrays[i].setStorage(kind == DENSE ? dense(ch, mode, offset, length) : sparse(ch, mode, offset, length, entries, file));
+				loaded++;
+			}
+			Metrics.loaded(start, file, loaded, size);
+		} catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+			throw new IOException(file + " is corrupt: truncated", e);
+		} finally {
+			ch.close(); // mappings stay valid after the channel is closed
+		}
+	}
+
+	private static int nameLength(ByteBuffer head) {
+		return head.getShort() & 0xffff;
+	}
+
+	private static IntArray dense(FileChannel ch, FileChannel.MapMode mode, long offset, long length) throws IOException {
+		IntBuffer[] pages = new IntBuffer[(int)((length + BufferIntArray.PAGE_SIZE - 1) >>> BufferIntArray.PAGE_BITS)];
+		for (int p = 0; p < pages.length; p++) {
+			long first = (long)p << BufferIntArray.PAGE_BITS;
+			long count = Math.min(BufferIntArray.PAGE_SIZE, length - first);
+			pages[p] = map(ch, mode, offset + first * 4, count * 4).asIntBuffer();
+		}
+		return new BufferIntArray(pages, length);
+	}
+
+	private static IntArray sparse(FileChannel ch, FileChannel.MapMode mode, long offset, long length, long entries, Path file) throws IOException {
+		if (entries * 8 > Integer.MAX_VALUE) {
+			throw new IOException(file + ": sparse array with " + entries + " entries is too large to map");
+		}
+		return new BufferSparseIntArray(map(ch, mode, offset, entries * 8).asLongBuffer(),
+				map(ch, mode, offset + entries * 8, entries * 4).asIntBuffer(), length);
+	}
+
+	private static ByteBuffer map(FileChannel ch, FileChannel.MapMode mode, long offset, long bytes) throws IOException {
+		MappedByteBuffer buf = ch.map(mode, offset, bytes);
+		return buf.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Converts a symbol values file in the text format of
+	 * Expression.loadSymbolValues(Scanner) to a snapshot holding every symbol in it.
+	 *
+	 * @param text Text symbol values file
+	 * @param snapshot Snapshot file, replaced if it exists
+	 * @return Symbols read from the text file
+	 * @throws IOException If either file cannot be accessed, or the text is malformed
+	 */
+	static SymbolTable convert(Path text, Path snapshot) throws IOException {
+		SymbolTable symbols = new SymbolTable();
+		SymbolFileReader.loadAll(text, symbols);
+		write(symbols, snapshot);
+		return symbols;
+	}
+
+	/**
+	 * Converts a text symbol values file to a snapshot.
+	 *
+	 * <pre>
+	 *     java apps.SymbolSnapshot etest1.txt etest1.snap
+	 * </pre>
+	 *
+	 * @param args Text file, snapshot file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: java apps.SymbolSnapshot <text file> <snapshot file>");
+			System.exit(2);
+		}
+		long start = System.nanoTime();
+		SymbolTable symbols = convert(Paths.get(args[0]), Paths.get(args[1]));
+		System.out.println("wrote " + symbols.scalars.size() + " scalars and " + symbols.arrays.size() + " arrays to " + args[1]
+				+ " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Little-endian output through a direct buffer, counting bytes written.
+	 */
+	private static class Output {
+
+		final FileChannel ch;
+		final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+		long position;
+
+		Output(FileChannel ch) {
+			this.ch = ch;
+		}
+
+		void putInt(int v) throws IOException {
+			room(4);
+			buf.putInt(v);
+			position += 4;
+		}
+
+		void putLong(long v) throws IOException {
+			room(8);
+			buf.putLong(v);
+			position += 8;
+		}
+
+		void putName(String name) throws IOException {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length > 0xffff) {
+				throw new IOException("symbol name longer than 65535 bytes: " + name.substring(0, 32) + "...");
+			}
+			room(2 + bytes.length);
+			buf.putShort((short)bytes.length);
+			buf.put(bytes);
+			position += 2 + bytes.length;
+		}
+
+		void align() throws IOException {
+			while ((position & 7) != 0) {
+				room(1);
+				buf.put((byte)0);
+				position++;
+			}
+		}
+
+		private void room(int bytes) throws IOException {
+			if (buf.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				ch.write(buf);
+			}
+			buf.clear();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import structures.IntArray;
+
+/**
+ * The values of every symbol in a symbol values file, loaded once and shared by any
+ * number of expressions. Binding an Expression, ExpressionSet or Bindings to a store
+ * copies the scalar values of the symbols it uses, which are a few ints, and binds its
+ * arrays to the store's by reference, so however many expressions use a file there
+ * is one copy of its arrays.
+ *
+ * A store is immutable, and can be shared by threads once loaded. Its arrays must not
+ * be changed through an expression bound to them: Expression.setArrayValue refuses to,
+ * and the values of a dense array's symbol must not be written directly.
+ */
+public final class SymbolStore {
+
+	private final SymbolTable symbols;
+
+	private SymbolStore(SymbolTable symbols) {
+		for (ArraySymbol as : symbols.arrays) {
+			as.storage(); // settle the lazily wrapped storage, so readers see a fixed object
+		}
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Loads every symbol of a file, in the format of Expression.loadSymbolValues(Scanner)
+	 * or a SymbolSnapshot.
+	 *
+	 * @param file Symbol values file
+	 * @return Store of the values in the file
+	 * @throws IOException If the file cannot be read or is malformed
+	 */
+	public static SymbolStore load(Path file) throws IOException {
+		SymbolTable symbols = new SymbolTable();
+		SymbolFileReader.loadAll(file, symbols);
+		return new SymbolStore(symbols);
+	}
+
+	/**
+	 * @return Number of scalars in the store
+	 */
+	public int scalarCount() {
+		return symbols.scalars.size();
+	}
+
+	/**
+	 * @return Number of arrays in the store
+	 */
+	public int arrayCount() {
+		return symbols.arrays.size();
+	}
+
+	/**
+	 * @param name Variable name
+	 * @return Whether the store has a value for the scalar
+	 */
+	public boolean hasScalar(String name) {
+		return symbols.scalar(name) != null;
+	}
+
+	/**
+	 * @param name Variable name
+	 * @return Value of the scalar
+	 * @throws IllegalArgumentException If the store has no such scalar
+	 */
+	public int scalar(String name) {
+		ScalarSymbol ss = symbols.scalar(name);
+		if (ss == null) {
+			throw new IllegalArgumentException("no scalar " + name + " in the store");
+		}
+		return ss.value;
+	}
+
+	/**
+	 * @param name Array name
+	 * @return Values of the array, which must not be changed, or null if the store has
+	 * no such array
+	 */
+	public IntArray array(String name) {
+		ArraySymbol as = symbols.array(name);
+		return as == null ? null : as.storage();
+	}
+
+	/**
+	 * Gives the symbols of a table that are in the store their values from it. Arrays
+	 * are bound, not copied; symbols the store lacks keep their values.
+	 *
+	 * @param target Symbol table to bind
+	 * @return Number of symbols bound
+	 */
+	int bind(SymbolTable target) {
+		int bound = 0;
+		for (ScalarSymbol ss : target.scalars) {
+			ScalarSymbol value = symbols.scalar(ss.name);
+			if (value != null) {
+				ss.value = value.value;
+				bound++;
+			}
+		}
+		for (ArraySymbol as : target.arrays) {
+			ArraySymbol value = symbols.array(as.name);
+			if (value != null) {
+				as.setStorage(value.storage());
+				bound++;
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * Binds the symbols of a binding context that are in the store to their values.
+	 * Arrays are bound, not copied; symbols the store lacks keep their values.
+	 *
+	 * @param bindings Binding context
+	 * @return Number of symbols bound
+	 */
+	int bind(Bindings bindings) {
+		return bindings.bindByName(symbols);
+	}
+
+	/**
+	 * @param as Array symbol of some table
+	 * @return Whether the symbol is bound to the store's values for it
+	 */
+	boolean shares(ArraySymbol as) {
+		ArraySymbol stored = symbols.array(as.name);
+		return stored != null && as.storage() != null && stored.storage() == as.storage();
+	}
+}
@@ -0,0 +1,102 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The scalar and array symbols of an expression. Every symbol is given a dense slot,
+ * its position in the scalars or arrays list, when it is added; names are looked up
+ * by hashing, so building the table and loading values take time proportional to
+ * the input rather than to the number of symbols.
+ */
+class SymbolTable {
+
+	/**
+	 * Scalar symbols, in slot order
+	 */
+	final ArrayList<ScalarSymbol> scalars = new ArrayList<ScalarSymbol>();
+
+	/**
+	 * Array symbols, in slot order
+	 */
+	final ArrayList<ArraySymbol> arrays = new ArrayList<ArraySymbol>();
+
+	private final HashMap<String, ScalarSymbol> scalarIndex = new HashMap<String, ScalarSymbol>();
+	private final HashMap<String, ArraySymbol> arrayIndex = new HashMap<String, ArraySymbol>();
+	private final NameIndex<ScalarSymbol> scalarBytes = new NameIndex<ScalarSymbol>();
+	private final NameIndex<ArraySymbol> arrayBytes = new NameIndex<ArraySymbol>();
+
+	/**
+	 * Returns the scalar symbol with the given name, adding it in the next free
+	 * slot if it is not in the table yet.
+	 *
+	 * @param name Variable name
+	 * @return Scalar symbol
+	 */
+	ScalarSymbol addScalar(String name) {
+		ScalarSymbol ss = scalarIndex.get(name);
+		if (ss == null) {
+			ss = new ScalarSymbol(name);
+			ss.slot = scalars.size();
+			scalars.add(ss);
+			scalarIndex.put(name, ss);
+			scalarBytes.put(name, ss);
+		}
+		return ss;
+	}
+
+	/**
+	 * Returns the array symbol with the given name, adding it in the next free
+	 * slot if it is not in the table yet.
+	 *
+	 * @param name Array name
+	 * @return Array symbol
+	 */
+	ArraySymbol addArray(String name) {
+		ArraySymbol as = arrayIndex.get(name);
+		if (as == null) {
+			as = new ArraySymbol(name);
+			as.slot = arrays.size();
+			arrays.add(as);
+			arrayIndex.put(name, as);
+			arrayBytes.put(name, as);
+		}
+		return as;
+	}
+
+	/**
+	 * @param name Variable name
+	 * @return Scalar symbol with the given name, or null if there is none
+	 */
+	ScalarSymbol scalar(String name) {
+		return scalarIndex.get(name);
+	}
+
+	/**
+	 * @param name Array name
+	 * @return Array symbol with the given name, or null if there is none
+	 */
+	ArraySymbol array(String name) {
+		return arrayIndex.get(name);
+	}
+
+	/**
+	 * @param buf Buffer holding the UTF-8 bytes of a name
+	 * @param off Offset of the name in buf
+	 * @param len Length of the name in bytes
+	 * @return Scalar symbol with the given name, or null if there is none
+	 */
+	ScalarSymbol scalar(byte[] buf, int off, int len) {
+		return scalarBytes.get(buf, off, len);
+	}
+
+	/**
+	 * @param buf Buffer holding the UTF-8 bytes of a name
+	 * @param off Offset of the name in buf
+	 * @param len Length of the name in bytes
+	 * @return Array symbol with the given name, or null if there is none
+	 */
+	ArraySymbol array(byte[] buf, int off, int len) {
+		return arrayBytes.get(buf, off, len);
+	}
+}
@@ -0,0 +1,75 @@
+package structures;
+
+import java.nio.IntBuffer;
+
+/**
+ * An IntArray that reads its entries from IntBuffers, typically views of a
+ * memory-mapped file, so the values are used where they lie instead of being copied
+ * into the heap. An array longer than one buffer can address is split into pages of
+ * PAGE_SIZE entries, one buffer each.
+ *
+ * Whether set works depends on the buffers: read-only buffers throw
+ * ReadOnlyBufferException.
+ */
+public class BufferIntArray extends IntArray {
+
+	/**
+	 * log2 of the number of entries in every page but the last
+	 */
+	public static final int PAGE_BITS = 28;
+
+	/**
+	 * Number of entries in every page but the last
+	 */
+	public static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private final long length;
+	private final IntBuffer[] pages;
+
+	/**
+	 * Wraps buffers without copying them. Entry i is at absolute position
+	 * i % PAGE_SIZE of page i / PAGE_SIZE.
+	 *
+	 * @param pages Buffers holding the values, PAGE_SIZE entries each but the last
+	 * @param length Length of the array
+	 */
+	public BufferIntArray(IntBuffer[] pages, long length) {
+		this.pages = pages;
+		this.length = length;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public int get(long index) {
+		checkIndex(index);
+		return pages[(int)(index >>> PAGE_BITS)].get((int)index & PAGE_MASK);
+	}
+
+	public void set(long index, int value) {
+		checkIndex(index);
+		pages[(int)(index >>> PAGE_BITS)].put((int)index & PAGE_MASK, value);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		if (length > 64) {
+			return "[length " + length + " in " + pages.length + " buffers]";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(get(i));
+		}
+		sb.append(length == 0 ? " ]" : "]");
+		return sb.toString();
+	}
+}
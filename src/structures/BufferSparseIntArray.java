@@ -0,0 +1,120 @@
+package structures;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A sparse IntArray read from buffers, typically views of a memory-mapped file: the
+ * indexes of the entries that are set, in ascending order, and their values. Lookups
+ * are binary searches over the indexes, done in place without copying them into the
+ * heap.
+ *
+ * The set of entries is fixed: set can change the value of an entry that is present,
+ * if the buffers are writable, but cannot add one.
+ */
+public class BufferSparseIntArray extends IntArray {
+
+	private final long length;
+	private final LongBuffer indexes;
+	private final IntBuffer values;
+	private final int size;
+
+	/**
+	 * Wraps buffers without copying them.
+	 *
+	 * @param indexes Indexes of the entries that are set, ascending
+	 * @param values Value of each entry, in the same order
+	 * @param length Length of the array
+	 */
+	public BufferSparseIntArray(LongBuffer indexes, IntBuffer values, long length) {
+		this.indexes = indexes;
+		this.values = values;
+		this.length = length;
+		size = indexes.limit();
+	}
+
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return Number of entries that are set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i Position of an entry, in [0, size)
+	 * @return Index of the entry
+	 */
+	public long indexAt(int i) {
+		return indexes.get(i);
+	}
+
+	/**
+	 * @param i Position of an entry, in [0, size)
+	 * @return Value of the entry
+	 */
+	public int valueAt(int i) {
+		return values.get(i);
+	}
+
+	public int get(long index) {
+		checkIndex(index);
+		int i = find(index);
+		return i < 0 ? 0 : values.get(i);
+	}
+
+	/**
+	 * Sets the value of an entry that is present.
+	 *
+	 * @throws UnsupportedOperationException If the entry is not present
+	 */
+	public void set(long index, int value) {
+		checkIndex(index);
+		int i = find(index);
+		if (i < 0) {
+			throw new UnsupportedOperationException("cannot add index " + index + " to a fixed sparse array");
+		}
+		values.put(i, value);
+	}
+
+	/**
+	 * @return Position of the entry with the given index, or -1 if it is not set
+	 */
+	private int find(long index) {
+		int lo = 0;
+		int hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long key = indexes.get(mid);
+			if (key < index) {
+				lo = mid + 1;
+			} else if (key > index) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[length ");
+		sb.append(length);
+		for (int i = 0; i < size; i++) {
+			sb.append(" (");
+			sb.append(indexes.get(i));
+			sb.append(',');
+			sb.append(values.get(i));
+			sb.append(')');
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
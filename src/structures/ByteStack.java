@@ -0,0 +1,122 @@
+package structures;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A stack of byte values, kept in a growable byte[] so that pushing and popping
+ * never box or allocate, except when the array has to grow.
+ */
+public class ByteStack {
+
+	/**
+	 * Items in the stack, bottom first.
+	 */
+	private byte[] items;
+
+	/**
+	 * Number of items in the stack.
+	 */
+	private int size;
+
+	/**
+	 * Initializes stack to empty.
+	 */
+	public ByteStack() {
+		this(16);
+	}
+
+	/**
+	 * Initializes stack to empty, with room for a given number of items.
+	 * 
+	 * @param capacity Number of items the stack can hold before it grows.
+	 */
+	public ByteStack(int capacity) {
+		items = new byte[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Pushes a new item on top of stack.
+	 * 
+	 * @param item Item to push.
+	 */
+	public void push(byte item) {
+		if (size == items.length) {
+			items = Arrays.copyOf(items, size * 2);
+		}
+		items[size++] = item;
+	}
+
+	/**
+	 * Pops item at top of stack and returns it.
+	 * 
+	 * @return Popped item.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public byte pop() 
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("can't pop from an empty stack");
+		}
+		return items[--size];
+	}
+
+	/**
+	 * Returns item on top of stack, without popping it.
+	 * 
+	 * @return Item at top of stack.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public byte peek() 
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("can't peek on an empty stack");
+		}
+		return items[size-1];
+	}
+
+	/**
+	 * Tells if stack is empty.
+	 * 
+	 * @return True if stack is empty, false if not.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns number of items in stack.
+	 * 
+	 * @return Number of items in stack.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the stack. The backing array is kept for reuse.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Makes sure the stack can hold a given number of items without growing.
+	 * 
+	 * @param capacity Number of items.
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > items.length) {
+			items = Arrays.copyOf(items, capacity);
+		}
+	}
+
+	/**
+	 * Returns the items in the stack, bottom first.
+	 * 
+	 * @return New array holding the items.
+	 */
+	public byte[] toArray() {
+		return Arrays.copyOf(items, size);
+	}
+}
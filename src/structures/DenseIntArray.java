@@ -0,0 +1,53 @@
+package structures;
+
+/**
+ * An IntArray that keeps every entry in an int[].
+ */
+public class DenseIntArray extends IntArray {
+
+	/**
+	 * Values, shared with whoever supplied them
+	 */
+	public final int[] values;
+
+	/**
+	 * Wraps an int[], without copying it.
+	 *
+	 * @param values Values of the array
+	 */
+	public DenseIntArray(int[] values) {
+		this.values = values;
+	}
+
+	public long length() {
+		return values.length;
+	}
+
+	public int get(long index) {
+		checkIndex(index);
+		return values[(int)index];
+	}
+
+	public void set(long index, int value) {
+		checkIndex(index);
+		values[(int)index] = value;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		if (values.length == 0) {
+			return "[ ]";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		sb.append(values[0]);
+		for (int i=1; i < values.length; i++) {
+			sb.append(',');
+			sb.append(values[i]);
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
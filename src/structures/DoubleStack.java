@@ -0,0 +1,122 @@
+package structures;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A stack of double values, kept in a growable double[] so that pushing and popping
+ * never box or allocate, except when the array has to grow.
+ */
+public class DoubleStack {
+
+	/**
+	 * Items in the stack, bottom first.
+	 */
+	private double[] items;
+
+	/**
+	 * Number of items in the stack.
+	 */
+	private int size;
+
+	/**
+	 * Initializes stack to empty.
+	 */
+	public DoubleStack() {
+		this(16);
+	}
+
+	/**
+	 * Initializes stack to empty, with room for a given number of items.
+	 * 
+	 * @param capacity Number of items the stack can hold before it grows.
+	 */
+	public DoubleStack(int capacity) {
+		items = new double[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Pushes a new item on top of stack.
+	 * 
+	 * @param item Item to push.
+	 */
+	public void push(double item) {
+		if (size == items.length) {
+			items = Arrays.copyOf(items, size * 2);
+		}
+		items[size++] = item;
+	}
+
+	/**
+	 * Pops item at top of stack and returns it.
+	 * 
+	 * @return Popped item.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public double pop() 
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("can't pop from an empty stack");
+		}
+		return items[--size];
+	}
+
+	/**
+	 * Returns item on top of stack, without popping it.
+	 * 
+	 * @return Item at top of stack.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public double peek() 
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("can't peek on an empty stack");
+		}
+		return items[size-1];
+	}
+
+	/**
+	 * Tells if stack is empty.
+	 * 
+	 * @return True if stack is empty, false if not.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns number of items in stack.
+	 * 
+	 * @return Number of items in stack.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the stack. The backing array is kept for reuse.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Makes sure the stack can hold a given number of items without growing.
+	 * 
+	 * @param capacity Number of items.
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > items.length) {
+			items = Arrays.copyOf(items, capacity);
+		}
+	}
+
+	/**
+	 * Returns the items in the stack, bottom first.
+	 * 
+	 * @return New array holding the items.
+	 */
+	public double[] toArray() {
+		return Arrays.copyOf(items, size);
+	}
+}
@@ -0,0 +1,85 @@
+package structures;
+
+/**
+ * An array of int values with long indexes. Implementations store the values in
+ * different ways: densely in an int[], sparsely in a hash map of the non-zero entries,
+ * or in pages for arrays longer than an int[] can be. Entries that were never set
+ * are zero.
+ */
+public abstract class IntArray {
+
+	/**
+	 * Longest array created dense without looking at how many entries it has
+	 */
+	public static final int DENSE_LIMIT = 1 << 20;
+
+	/**
+	 * Longest array that fits in a single int[]
+	 */
+	public static final int MAX_DENSE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Creates an array of the given length, all zero. Short arrays are dense; long
+	 * ones start out sparse, and can be converted with compact once filled in.
+	 *
+	 * @param length Length of the array
+	 * @return Empty array
+	 * @throws IllegalArgumentException If length is negative
+	 */
+	public static IntArray create(long length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("negative array length " + length);
+		}
+		if (length <= DENSE_LIMIT) {
+			return new DenseIntArray(new int[(int)length]);
+		}
+		return new SparseIntArray(length);
+	}
+
+	/**
+	 * Number of entries in the array.
+	 *
+	 * @return Length
+	 */
+	public abstract long length();
+
+	/**
+	 * Returns the value at an index.
+	 *
+	 * @param index Index
+	 * @return Value at index
+	 * @throws ArrayIndexOutOfBoundsException If index is not in [0, length)
+	 */
+	public abstract int get(long index);
+
+	/**
+	 * Sets the value at an index.
+	 *
+	 * @param index Index
+	 * @param value New value
+	 * @throws ArrayIndexOutOfBoundsException If index is not in [0, length)
+	 */
+	public abstract void set(long index, int value);
+
+	/**
+	 * Returns an array with the same values in the most economical representation
+	 * for the number of entries it holds. The default returns this array.
+	 *
+	 * @return This array or an equivalent one
+	 */
+	public IntArray compact() {
+		return this;
+	}
+
+	/**
+	 * Throws if an index is out of bounds.
+	 *
+	 * @param index Index to check
+	 * @throws ArrayIndexOutOfBoundsException If index is not in [0, length)
+	 */
+	protected void checkIndex(long index) {
+		if (index < 0 || index >= length()) {
+			throw new ArrayIndexOutOfBoundsException("index " + index + " out of bounds for length " + length());
+		}
+	}
+}
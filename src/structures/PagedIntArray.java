@@ -0,0 +1,58 @@
+package structures;
+
+/**
+ * An IntArray made of fixed-size int[] pages, so it can be longer than 2^31 entries.
+ * Pages are allocated the first time an entry in them is set; entries in missing
+ * pages read as zero.
+ */
+public class PagedIntArray extends IntArray {
+
+	private static final int PAGE_BITS = 20;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private final long length;
+	private final int[][] pages;
+
+	/**
+	 * Creates an array of the given length, all zero.
+	 *
+	 * @param length Length of the array
+	 */
+	public PagedIntArray(long length) {
+		this.length = length;
+		pages = new int[(int)((length + PAGE_SIZE - 1) >>> PAGE_BITS)][];
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public int get(long index) {
+		checkIndex(index);
+		int[] page = pages[(int)(index >>> PAGE_BITS)];
+		return page == null ? 0 : page[(int)index & PAGE_MASK];
+	}
+
+	public void set(long index, int value) {
+		checkIndex(index);
+		int p = (int)(index >>> PAGE_BITS);
+		if (pages[p] == null) {
+			pages[p] = new int[PAGE_SIZE];
+		}
+		pages[p][(int)index & PAGE_MASK] = value;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		int allocated = 0;
+		for (int[] page : pages) {
+			if (page != null) {
+				allocated++;
+			}
+		}
+		return "[length " + length + ", " + allocated + " of " + pages.length + " pages]";
+	}
+}
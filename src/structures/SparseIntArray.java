@@ -0,0 +1,145 @@
+package structures;
+
+import java.util.Arrays;
+
+/**
+ * An IntArray that stores only the entries that have been set, in an open-addressing
+ * hash map from long index to int value held in two primitive arrays. Memory is
+ * proportional to the number of entries set, not to the length of the array.
+ */
+public class SparseIntArray extends IntArray {
+
+	/**
+	 * Bytes used per entry, counting the empty half of the table
+	 */
+	private static final int BYTES_PER_ENTRY = 2 * (8 + 4);
+
+	/**
+	 * Marks an empty slot in the keys table; indexes are never negative
+	 */
+	private static final long EMPTY = -1;
+
+	private final long length;
+	private long[] keys;
+	private int[] vals;
+	private int size;
+
+	/**
+	 * Creates an array of the given length, all zero.
+	 *
+	 * @param length Length of the array
+	 */
+	public SparseIntArray(long length) {
+		this.length = length;
+		keys = new long[16];
+		vals = new int[16];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return Number of entries that have been set
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int get(long index) {
+		checkIndex(index);
+		int i = find(keys, index);
+		return keys[i] == EMPTY ? 0 : vals[i];
+	}
+
+	public void set(long index, int value) {
+		checkIndex(index);
+		if (2 * (size + 1) > keys.length) {
+			grow();
+		}
+		int i = find(keys, index);
+		if (keys[i] == EMPTY) {
+			keys[i] = index;
+			size++;
+		}
+		vals[i] = value;
+	}
+
+	/**
+	 * Converts to a dense representation, a DenseIntArray or a PagedIntArray for
+	 * arrays too long for an int[], once enough entries are set for that to take no
+	 * more memory than this one.
+	 */
+	public IntArray compact() {
+		if ((long)size * BYTES_PER_ENTRY < length * 4) {
+			return this;
+		}
+		IntArray dense = length <= MAX_DENSE ? new DenseIntArray(new int[(int)length]) : new PagedIntArray(length);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				dense.set(keys[i], vals[i]);
+			}
+		}
+		return dense;
+	}
+
+	private static int find(long[] keys, long index) {
+		int mask = keys.length - 1;
+		long h = index * 0x9E3779B97F4A7C15L;
+		int i = (int)(h ^ (h >>> 32)) & mask;
+		while (keys[i] != EMPTY && keys[i] != index) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldVals = vals;
+		keys = new long[oldKeys.length * 2];
+		vals = new int[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != EMPTY) {
+				int i = find(keys, oldKeys[j]);
+				keys[i] = oldKeys[j];
+				vals[i] = oldVals[j];
+			}
+		}
+	}
+
+	/**
+	 * @return Indexes of the entries that have been set, in ascending order
+	 */
+	public long[] indexes() {
+		long[] sorted = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				sorted[n++] = keys[i];
+			}
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		long[] sorted = indexes();
+		StringBuilder sb = new StringBuilder();
+		sb.append("[length ");
+		sb.append(length);
+		for (long index : sorted) {
+			sb.append(" (");
+			sb.append(index);
+			sb.append(',');
+			sb.append(vals[find(keys, index)]);
+			sb.append(')');
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}